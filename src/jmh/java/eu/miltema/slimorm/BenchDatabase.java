@@ -0,0 +1,36 @@
+package eu.miltema.slimorm;
+
+import java.sql.*;
+import java.util.stream.IntStream;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * In-memory H2 database, which stands in for a real database server, so that benchmarks measure client-side cost only
+ */
+class BenchDatabase {
+
+	static final String URL = "jdbc:h2:mem:slimbench;DB_CLOSE_DELAY=-1;DATABASE_TO_LOWER=TRUE";
+	static final int SEED_ROWS = 10000;
+
+	/**
+	 * Create and populate benchmark table; rows in table have count values 1..SEED_ROWS
+	 * @return database object
+	 * @throws Exception when anything goes wrong
+	 */
+	static Database create() throws Exception {
+		Class.forName("org.h2.Driver");
+		try(Connection conn = DriverManager.getConnection(URL); Statement stmt = conn.createStatement()) {
+			stmt.execute("DROP TABLE IF EXISTS bench_entity");
+			stmt.execute("CREATE TABLE bench_entity(id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(100), count INT, total BIGINT, " +
+					"amount DOUBLE, price DECIMAL(20, 2), created TIMESTAMP, valid_from DATE)");
+			stmt.execute("CREATE INDEX bench_entity_count ON bench_entity(count)");
+		}
+		Database db = new Database(() -> DriverManager.getConnection(URL));
+		db.bulkInsert(IntStream.rangeClosed(1, SEED_ROWS).mapToObj(BenchEntity::new).collect(toList()));
+		return db;
+	}
+
+	static Connection connect() throws SQLException {
+		return DriverManager.getConnection(URL);
+	}
+}
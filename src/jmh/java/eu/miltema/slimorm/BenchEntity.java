@@ -0,0 +1,36 @@
+package eu.miltema.slimorm;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+
+import javax.persistence.*;
+
+@Table(name = "bench_entity")
+public class BenchEntity {
+
+	@Id
+	@GeneratedValue
+	public Integer id;
+
+	public String name;
+	public int count;
+	public Long total;
+	public double amount;
+	public BigDecimal price;
+	public Timestamp created;
+	public LocalDate validFrom;
+
+	public BenchEntity() {
+	}
+
+	public BenchEntity(int i) {
+		name = "name" + i;
+		count = i;
+		total = i * 1000L;
+		amount = i * 1.5d;
+		price = BigDecimal.valueOf(i, 2);
+		created = new Timestamp(1500000000000L + i * 1000L);
+		validFrom = LocalDate.of(2019, 1, 1).plusDays(i % 365);
+	}
+}
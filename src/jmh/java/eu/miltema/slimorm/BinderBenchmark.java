@@ -0,0 +1,79 @@
+package eu.miltema.slimorm;
+
+import java.math.BigDecimal;
+import java.sql.*;
+import java.time.*;
+import java.util.concurrent.TimeUnit;
+
+import org.h2.tools.SimpleResultSet;
+import org.openjdk.jmh.annotations.*;
+
+import eu.miltema.slimorm.dialect.PgDialect;
+
+/**
+ * PgDialect load binders (reading a value from in-memory resultset) and save binders (binding a value into H2 statement)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BinderBenchmark {
+
+	@Param({"int", "Integer", "long", "double", "String", "BigDecimal", "Timestamp", "LocalDate"})
+	public String type;
+
+	private LoadBinder loadBinder;
+	private SaveBinder saveBinder;
+	private SimpleResultSet rs;
+	private Connection connection;
+	private PreparedStatement stmt;
+	private Object value;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		Class<?> javaType;
+		int sqlType;
+		Object columnValue;
+		switch(type) {
+			case "int": javaType = int.class; sqlType = Types.INTEGER; value = columnValue = 42; break;
+			case "Integer": javaType = Integer.class; sqlType = Types.INTEGER; value = columnValue = 42; break;
+			case "long": javaType = long.class; sqlType = Types.BIGINT; value = columnValue = 42L; break;
+			case "double": javaType = double.class; sqlType = Types.DOUBLE; value = columnValue = 4.2d; break;
+			case "String": javaType = String.class; sqlType = Types.VARCHAR; value = columnValue = "abc"; break;
+			case "BigDecimal": javaType = BigDecimal.class; sqlType = Types.DECIMAL; value = columnValue = new BigDecimal("1234.56"); break;
+			case "Timestamp": javaType = Timestamp.class; sqlType = Types.TIMESTAMP; value = columnValue = new Timestamp(1500000000000L); break;
+			case "LocalDate": javaType = LocalDate.class; sqlType = Types.TIMESTAMP; value = LocalDate.of(2019, 1, 1); columnValue = Timestamp.valueOf(LocalDateTime.of(2019, 1, 1, 0, 0)); break;
+			default: throw new IllegalArgumentException(type);
+		}
+		PgDialect dialect = new PgDialect();
+		loadBinder = dialect.getLoadBinder(javaType);
+		saveBinder = dialect.getSaveBinder(javaType);
+
+		rs = new SimpleResultSet();
+		rs.addColumn("value", sqlType, 20, 2);
+		rs.addRow(columnValue);
+		rs.next();
+
+		Class.forName("org.h2.Driver");
+		connection = DriverManager.getConnection(BenchDatabase.URL);
+		stmt = connection.prepareStatement("SELECT ?");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		stmt.close();
+		connection.close();
+	}
+
+	@Benchmark
+	public Object load() throws Exception {
+		return loadBinder.convert(rs, 1);
+	}
+
+	@Benchmark
+	public void save() throws Exception {
+		saveBinder.bind(stmt, 1, value);
+	}
+}
@@ -0,0 +1,168 @@
+package eu.miltema.slimorm;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import static java.util.stream.Collectors.toList;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * CRUD operations via SlimORM and the same operations via raw JDBC. Both variants allocate a connection per operation.
+ * The difference between SlimORM and raw JDBC scores is the ORM overhead; list and bulk scores are per row
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CrudBenchmark {
+
+	static final int ROWS = 100;
+
+	private Database db;
+	private BenchEntity entity;
+	private List<BenchEntity> bulk;
+	private Random random = new Random(1);
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		db = BenchDatabase.create();
+		entity = db.getById(BenchEntity.class, 1);
+		bulk = IntStream.range(0, ROWS).mapToObj(i -> new BenchEntity(-1)).collect(toList());//negative count keeps these rows out of listWhere results; ids are regenerated on each insert
+	}
+
+	/**
+	 * Remove rows inserted during previous iteration, so that every iteration of insert benchmarks and their raw JDBC twins starts with seed rows only
+	 */
+	@Setup(Level.Iteration)
+	public void setupIteration() throws Exception {
+		try(Connection conn = BenchDatabase.connect(); Statement stmt = conn.createStatement()) {
+			stmt.executeUpdate("DELETE FROM bench_entity WHERE count<0");
+		}
+	}
+
+	private int randomId() {
+		return random.nextInt(BenchDatabase.SEED_ROWS) + 1;
+	}
+
+	private int randomCount() {
+		return random.nextInt(BenchDatabase.SEED_ROWS - ROWS) + 1;
+	}
+
+	@Benchmark
+	public Object insert() throws Exception {
+		return db.insert(new BenchEntity(-1));
+	}
+
+	@Benchmark
+	public Object rawInsert() throws Exception {
+		BenchEntity e = new BenchEntity(-1);
+		try(Connection conn = BenchDatabase.connect();
+				PreparedStatement stmt = conn.prepareStatement("INSERT INTO bench_entity(name,count,total,amount,price,created,valid_from) VALUES (?,?,?,?,?,?,?)", new String[] {"id"})) {
+			stmt.setString(1, e.name);
+			stmt.setInt(2, e.count);
+			stmt.setLong(3, e.total);
+			stmt.setDouble(4, e.amount);
+			stmt.setBigDecimal(5, e.price);
+			stmt.setTimestamp(6, e.created);
+			stmt.setDate(7, java.sql.Date.valueOf(e.validFrom));
+			stmt.executeUpdate();
+			try(ResultSet rs = stmt.getGeneratedKeys()) {
+				rs.next();
+				e.id = rs.getInt(1);
+			}
+		}
+		return e;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public Object bulkInsert() throws Exception {
+		return db.bulkInsert(bulk);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public Object rawBulkInsert() throws Exception {
+		try(Connection conn = BenchDatabase.connect();
+				PreparedStatement stmt = conn.prepareStatement("INSERT INTO bench_entity(name,count,total,amount,price,created,valid_from) VALUES (?,?,?,?,?,?,?)")) {
+			for(BenchEntity e : bulk) {
+				stmt.setString(1, e.name);
+				stmt.setInt(2, e.count);
+				stmt.setLong(3, e.total);
+				stmt.setDouble(4, e.amount);
+				stmt.setBigDecimal(5, e.price);
+				stmt.setTimestamp(6, e.created);
+				stmt.setDate(7, java.sql.Date.valueOf(e.validFrom));
+				stmt.addBatch();
+			}
+			return stmt.executeBatch();
+		}
+	}
+
+	@Benchmark
+	public void update() throws Exception {
+		entity.amount++;
+		db.update(entity);
+	}
+
+	@Benchmark
+	public int rawUpdate() throws Exception {
+		entity.amount++;
+		try(Connection conn = BenchDatabase.connect();
+				PreparedStatement stmt = conn.prepareStatement("UPDATE bench_entity SET name=?,count=?,total=?,amount=?,price=?,created=?,valid_from=? WHERE id=?")) {
+			stmt.setString(1, entity.name);
+			stmt.setInt(2, entity.count);
+			stmt.setLong(3, entity.total);
+			stmt.setDouble(4, entity.amount);
+			stmt.setBigDecimal(5, entity.price);
+			stmt.setTimestamp(6, entity.created);
+			stmt.setDate(7, java.sql.Date.valueOf(entity.validFrom));
+			stmt.setInt(8, entity.id);
+			return stmt.executeUpdate();
+		}
+	}
+
+	@Benchmark
+	public Object getById() throws Exception {
+		return db.getById(BenchEntity.class, randomId());
+	}
+
+	@Benchmark
+	public Object rawGetById() throws Exception {
+		try(Connection conn = BenchDatabase.connect();
+				PreparedStatement stmt = conn.prepareStatement("SELECT id,name,count,total,amount,price,created,valid_from FROM bench_entity WHERE id=?")) {
+			stmt.setInt(1, randomId());
+			try(ResultSet rs = stmt.executeQuery()) {
+				return (rs.next() ? RawMapper.map(rs) : null);
+			}
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public Object listWhere() throws Exception {
+		int count = randomCount();
+		return db.listWhere(BenchEntity.class, "count>=? AND count<?", count, count + ROWS);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public Object rawListWhere() throws Exception {
+		int count = randomCount();
+		try(Connection conn = BenchDatabase.connect();
+				PreparedStatement stmt = conn.prepareStatement("SELECT id,name,count,total,amount,price,created,valid_from FROM bench_entity WHERE count>=? AND count<?")) {
+			stmt.setInt(1, count);
+			stmt.setInt(2, count + ROWS);
+			try(ResultSet rs = stmt.executeQuery()) {
+				ArrayList<BenchEntity> list = new ArrayList<>();
+				while(rs.next())
+					list.add(RawMapper.map(rs));
+				return list;
+			}
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package eu.miltema.slimorm;
+
+import java.math.BigDecimal;
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.h2.tools.SimpleResultSet;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import eu.miltema.slimorm.dialect.PgDialect;
+
+/**
+ * Row mapping from an in-memory resultset: SlimORM buildEntity versus hand-written mapping. Scores are per row
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MappingBenchmark {
+
+	static final int ROWS = 100;
+	static final String[] COLUMNS = {"id", "name", "count", "total", "amount", "price", "created", "valid_from"};
+
+	private SimpleResultSet rs;
+	private EntityProperties props;
+	private FieldProperties[] fields;
+	private SqlQuery query;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		rs = new SimpleResultSet();
+		rs.setAutoClose(false);
+		rs.addColumn("id", Types.INTEGER, 10, 0);
+		rs.addColumn("name", Types.VARCHAR, 100, 0);
+		rs.addColumn("count", Types.INTEGER, 10, 0);
+		rs.addColumn("total", Types.BIGINT, 19, 0);
+		rs.addColumn("amount", Types.DOUBLE, 17, 0);
+		rs.addColumn("price", Types.DECIMAL, 20, 2);
+		rs.addColumn("created", Types.TIMESTAMP, 26, 6);
+		rs.addColumn("valid_from", Types.TIMESTAMP, 26, 6);
+		for(int i = 1; i <= ROWS; i++)
+			rs.addRow(i, "name" + i, i, i * 1000L, i * 1.5d, BigDecimal.valueOf(i, 2),
+					new Timestamp(1500000000000L + i * 1000L), Timestamp.valueOf(LocalDateTime.of(2019, 1, 1, 0, 0).plusDays(i)));
+
+		props = new PgDialect().getProperties(BenchEntity.class);
+		fields = Stream.of(COLUMNS).map(props.mapColumnToField::get).toArray(FieldProperties[]::new);
+		Database db = new Database(() -> {
+			throw new SQLException("Mapping benchmark does not use connections");
+		});
+		query = new SqlQuery(db, null, message -> {});
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void buildEntity(Blackhole blackhole) throws Exception {
+		rs.beforeFirst();
+		while(rs.next())
+			blackhole.consume(query.buildEntity(props, rs, fields));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void rawMapping(Blackhole blackhole) throws Exception {
+		rs.beforeFirst();
+		while(rs.next())
+			blackhole.consume(RawMapper.map(rs));
+	}
+}
@@ -0,0 +1,33 @@
+package eu.miltema.slimorm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import eu.miltema.slimorm.dialect.*;
+
+/**
+ * EntityProperties initialization (both phases) and cached lookup
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetadataBenchmark {
+
+	private Dialect dialect = new PgDialect();
+
+	@Benchmark
+	public Object initialize() {
+		EntityProperties props = new EntityProperties(BenchEntity.class, dialect);
+		props.finishInitialization();
+		return props;
+	}
+
+	@Benchmark
+	public Object cachedLookup() {
+		return dialect.getProperties(BenchEntity.class);
+	}
+}
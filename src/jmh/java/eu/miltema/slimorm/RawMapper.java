@@ -0,0 +1,24 @@
+package eu.miltema.slimorm;
+
+import java.sql.*;
+
+/**
+ * Hand-written row mapping, which serves as a baseline for SlimORM row mapping
+ */
+class RawMapper {
+
+	static BenchEntity map(ResultSet rs) throws SQLException {
+		BenchEntity e = new BenchEntity();
+		e.id = rs.getInt(1);
+		e.name = rs.getString(2);
+		e.count = rs.getInt(3);
+		long total = rs.getLong(4);
+		e.total = (rs.wasNull() ? null : total);
+		e.amount = rs.getDouble(5);
+		e.price = rs.getBigDecimal(6);
+		e.created = rs.getTimestamp(7);
+		Timestamp validFrom = rs.getTimestamp(8);
+		e.validFrom = (validFrom == null ? null : validFrom.toLocalDateTime().toLocalDate());
+		return e;
+	}
+}
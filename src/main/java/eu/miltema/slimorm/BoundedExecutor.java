@@ -0,0 +1,92 @@
+package eu.miltema.slimorm;
+
+import java.util.*;
+import java.util.concurrent.Executor;
+
+/**
+ * Executor, which runs up to a given number of tasks at a time on a delegate executor and queues the rest.
+ * Callers are never blocked. This keeps async operations from requesting more connections than the database can supply.
+ * A task submitted from a running task, while all slots are taken, runs in the submitting thread: queueing it could deadlock,
+ * when the running task waits for its result
+ */
+class BoundedExecutor implements Executor {
+
+	private Executor executor;
+	private int maxConcurrency;
+	private int running;
+	private Queue<Runnable> queue = new ArrayDeque<>();
+	private ThreadLocal<Boolean> inTask = new ThreadLocal<>();//true in threads running a task of this executor
+
+	/**
+	 * @param executor delegate executor
+	 * @param maxConcurrency maximum number of tasks running at a time
+	 */
+	BoundedExecutor(Executor executor, int maxConcurrency) {
+		if (maxConcurrency < 1)
+			throw new IllegalArgumentException("Concurrency must be positive");
+		this.executor = executor;
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		boolean nested;
+		synchronized(this) {
+			nested = (running >= maxConcurrency && inTask.get() != null);//task would wait for a slot held by its own caller
+			if (running >= maxConcurrency && !nested) {
+				queue.add(task);
+				return;
+			}
+			if (!nested)
+				running++;
+		}
+		if (nested) {
+			task.run();
+			return;
+		}
+		try {
+			submit(task);
+		}
+		catch(RuntimeException x) {//delegate rejected the task
+			synchronized(this) {
+				running--;
+			}
+			throw x;
+		}
+	}
+
+	private void submit(Runnable task) {
+		executor.execute(() -> {
+			inTask.set(Boolean.TRUE);
+			try {
+				task.run();
+			}
+			finally {
+				inTask.remove();
+				runNext();
+			}
+		});
+	}
+
+	private void runNext() {
+		Runnable task;
+		synchronized(this) {
+			task = queue.poll();
+			if (task == null) {
+				running--;
+				return;
+			}
+		}
+		try {
+			submit(task);
+		}
+		catch(RuntimeException x) {//delegate rejected the queued task: run it in current thread, since its caller is not waiting for rejection any more
+			try {
+				task.run();
+			}
+			finally {
+				runNext();
+			}
+		}
+	}
+}
@@ -0,0 +1,567 @@
+package eu.miltema.slimorm;
+
+import java.io.*;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+
+/**
+ * Lightweight connection pool. Physical connections are provided by another connection factory, for example DriverManager.
+ * Closing a pooled connection returns the physical connection to the pool; uncommitted work is rolled back and autocommit is restored.
+ * Idle connections above minimum size are closed after idle timeout; connections idle for more than a second are validated before use
+ */
+public class ConnectionPool implements DatabaseConnectionFactory {
+
+	private static final long VALIDATE_IDLE_NANOS = 1_000_000_000L;//connections idle for longer are validated before use
+	private static final long HOUSEKEEPING_MILLIS = 1000;
+	private static ScheduledExecutorService housekeeper;//shared by all pools; created on first use
+
+	private DatabaseConnectionFactory factory;
+	private int minSize = 0;
+	private int maxSize = 10;
+	private long maxWaitNanos = 30_000_000_000L;
+	private long idleTimeoutNanos = 600_000_000_000L;
+	private int validationTimeoutSeconds = 5;
+	private long leakThresholdNanos;//0 means leak detection is disabled
+	private Consumer<String> leakReporter = message -> {};
+
+	private ReentrantLock lock = new ReentrantLock();
+	private Condition available = lock.newCondition();
+	private Deque<PhysicalConnection> idle = new ArrayDeque<>();//most recently used first
+	private Set<Lease> leases = new HashSet<>();//connections in use
+	private int total;//physical connections open or being opened
+	private int waiting;
+	private boolean closed;
+	private LongAdder acquireCount = new LongAdder(), acquireNanos = new LongAdder(), timeouts = new LongAdder();
+	private volatile Housekeeping housekeeping;
+
+	private static class PhysicalConnection {
+		Connection connection;
+		long idleSince;
+		StatementCache statementCache;//survives the release of pooled connection; used by one lease at a time
+
+		PhysicalConnection(Connection connection) {
+			this.connection = connection;
+		}
+	}
+
+	/**
+	 * Pooled connection handed out to the caller. Closing it returns the physical connection to the pool
+	 */
+	private class Lease implements InvocationHandler {
+		PhysicalConnection physical;
+		long acquired = System.nanoTime();
+		Throwable origin;//stack trace of acquisition; only present when leak detection is enabled
+		boolean leakReported;//guarded by pool lock
+		volatile boolean closed;
+
+		Lease(PhysicalConnection physical) {
+			this.physical = physical;
+			if (leakThresholdNanos > 0)
+				origin = new Throwable("Connection acquired here");
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch(method.getName()) {
+				case "close": release(this); return null;
+				case "isClosed": return closed;
+				case "equals": return proxy == args[0];
+				case "hashCode": return System.identityHashCode(proxy);
+				case "toString": return "Pooled " + physical.connection;
+				case "unwrap": if (((Class<?>) args[0]).isInstance(proxy)) return proxy; break;//vendor interfaces (for example PGConnection) are unwrapped from physical connection
+				case "isWrapperFor": if (((Class<?>) args[0]).isInstance(proxy)) return true; break;
+			}
+			if (closed)
+				throw new SQLException("Connection is closed");
+			Object result;
+			try {
+				result = method.invoke(physical.connection, args);
+			}
+			catch(InvocationTargetException ite) {
+				throw ite.getCause();
+			}
+			if (result instanceof Statement || result instanceof DatabaseMetaData)
+				return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {method.getReturnType()}, new ConnectionChild(result, (Connection) proxy));
+			return result;
+		}
+	}
+
+	/**
+	 * Statement or metadata of a pooled connection. Its getConnection returns the pooled connection, so that the physical connection is not exposed
+	 */
+	private static class ConnectionChild implements InvocationHandler {
+		Object target;
+		Connection connection;
+
+		ConnectionChild(Object target, Connection connection) {
+			this.target = target;
+			this.connection = connection;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch(method.getName()) {
+				case "getConnection": if (args == null) return connection; break;
+				case "equals": return proxy == args[0];
+				case "hashCode": return System.identityHashCode(proxy);
+				case "toString": return target.toString();
+				case "unwrap": if (((Class<?>) args[0]).isInstance(proxy)) return proxy; break;
+				case "isWrapperFor": if (((Class<?>) args[0]).isInstance(proxy)) return true; break;
+			}
+			try {
+				return method.invoke(target, args);
+			}
+			catch(InvocationTargetException ite) {
+				throw ite.getCause();
+			}
+		}
+	}
+
+	/**
+	 * Runs pool maintenance periodically. Pool is referenced weakly, so that an unused pool can be garbage collected
+	 */
+	private static class Housekeeping implements Runnable {
+		WeakReference<ConnectionPool> pool;
+		volatile ScheduledFuture<?> future;
+
+		Housekeeping(ConnectionPool pool) {
+			this.pool = new WeakReference<>(pool);
+		}
+
+		@Override
+		public void run() {
+			ConnectionPool p = pool.get();
+			if (p == null) {
+				if (future != null)
+					future.cancel(false);
+				return;
+			}
+			try {
+				p.housekeep();
+			}
+			catch(RuntimeException x) {//keep the task scheduled
+			}
+		}
+	}
+
+	/**
+	 * @param factory factory of physical connections
+	 */
+	public ConnectionPool(DatabaseConnectionFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * @param minSize number of connections kept open even when idle; default is 0
+	 * @return connection pool
+	 */
+	public ConnectionPool setMinSize(int minSize) {
+		this.minSize = minSize;
+		return this;
+	}
+
+	/**
+	 * @param maxSize maximum number of open connections; default is 10
+	 * @return connection pool
+	 */
+	public ConnectionPool setMaxSize(int maxSize) {
+		if (maxSize < 1)
+			throw new IllegalArgumentException("Pool size must be positive");
+		lock.lock();
+		try {
+			this.maxSize = maxSize;
+			available.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+		return this;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @param millis maximum time in milliseconds to wait for a connection, when all connections are in use; default is 30 seconds
+	 * @return connection pool
+	 */
+	public ConnectionPool setMaxWaitMillis(long millis) {
+		this.maxWaitNanos = millis * 1_000_000L;
+		return this;
+	}
+
+	/**
+	 * @param millis time in milliseconds, after which idle connections above minimum size are closed; default is 10 minutes
+	 * @return connection pool
+	 */
+	public ConnectionPool setIdleTimeoutMillis(long millis) {
+		this.idleTimeoutNanos = millis * 1_000_000L;
+		return this;
+	}
+
+	/**
+	 * @param seconds timeout of validating an idle connection before use; default is 5 seconds
+	 * @return connection pool
+	 */
+	public ConnectionPool setValidationTimeoutSeconds(int seconds) {
+		this.validationTimeoutSeconds = seconds;
+		return this;
+	}
+
+	/**
+	 * Report connections, which have been in use for longer than given threshold. The report includes the stack trace of connection acquisition
+	 * @param thresholdMillis threshold in milliseconds; 0 disables leak detection
+	 * @param reporter receives leak reports, for example a logger
+	 * @return connection pool
+	 */
+	public ConnectionPool setLeakDetection(long thresholdMillis, Consumer<String> reporter) {
+		this.leakThresholdNanos = thresholdMillis * 1_000_000L;
+		this.leakReporter = reporter;
+		return this;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		startHousekeeping();
+		long start = System.nanoTime();
+		long deadline = start + maxWaitNanos;
+		PhysicalConnection physical = null;
+		while(physical == null) {
+			boolean create = false;
+			lock.lock();
+			try {
+				while(true) {
+					if (closed)
+						throw new SQLException("Connection pool is closed");
+					physical = idle.pollFirst();
+					if (physical != null)
+						break;
+					if (total < maxSize) {
+						total++;
+						create = true;
+						break;
+					}
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						timeouts.increment();
+						throw new SQLException("No connection available within " + maxWaitNanos / 1_000_000L + " ms");
+					}
+					waiting++;
+					try {
+						available.awaitNanos(remaining);
+					}
+					catch(InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted while waiting for connection", ie);
+					}
+					finally {
+						waiting--;
+					}
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+			if (create)
+				physical = open();
+			else if (!isUsable(physical)) {
+				discard(physical);
+				physical = null;
+			}
+		}
+		acquireCount.increment();
+		acquireNanos.add(System.nanoTime() - start);
+		Lease lease = new Lease(physical);
+		lock.lock();
+		try {
+			leases.add(lease);
+		}
+		finally {
+			lock.unlock();
+		}
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class}, lease);
+	}
+
+	/**
+	 * Get the statement cache attached to the physical connection of a pooled connection, so that cached statements are reused across connection releases
+	 * @param connection connection
+	 * @param factory creates the cache for a physical connection; null, if the cache must not be created
+	 * @return statement cache; null, if the connection was not handed out by a connection pool or the cache does not exist
+	 */
+	static StatementCache getStatementCache(Connection connection, Function<Connection, StatementCache> factory) {
+		if (!Proxy.isProxyClass(connection.getClass()) || !(Proxy.getInvocationHandler(connection) instanceof Lease))
+			return null;
+		PhysicalConnection physical = ((Lease) Proxy.getInvocationHandler(connection)).physical;
+		if (physical.statementCache == null && factory != null)
+			physical.statementCache = factory.apply(physical.connection);
+		return physical.statementCache;
+	}
+
+	/**
+	 * Open a physical connection; the slot in total count must have been reserved by the caller
+	 */
+	private PhysicalConnection open() throws SQLException {
+		try {
+			return new PhysicalConnection(factory.getConnection());
+		}
+		catch(Exception x) {
+			lock.lock();
+			try {
+				total--;
+				available.signal();
+			}
+			finally {
+				lock.unlock();
+			}
+			if (x instanceof SQLException)
+				throw (SQLException) x;
+			throw new SQLException("Unable to open connection", x);
+		}
+	}
+
+	private boolean isUsable(PhysicalConnection physical) {
+		if (System.nanoTime() - physical.idleSince < VALIDATE_IDLE_NANOS)
+			return true;
+		try {
+			return physical.connection.isValid(validationTimeoutSeconds);
+		}
+		catch(SQLException x) {
+			return false;
+		}
+	}
+
+	/**
+	 * Close a physical connection, which has been removed from idle connections
+	 */
+	private void discard(PhysicalConnection physical) {
+		closeQuietly(physical);
+		lock.lock();
+		try {
+			total--;
+			available.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private void release(Lease lease) {
+		lock.lock();
+		try {
+			if (lease.closed)
+				return;
+			lease.closed = true;
+		}
+		finally {
+			lock.unlock();
+		}
+		boolean reusable = reset(lease.physical.connection);
+		lock.lock();
+		try {
+			leases.remove(lease);
+			reusable &= !closed;
+			if (reusable) {
+				lease.physical.idleSince = System.nanoTime();
+				idle.addFirst(lease.physical);
+			}
+			else total--;
+			available.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+		if (!reusable)
+			closeQuietly(lease.physical);
+	}
+
+	/**
+	 * Roll back uncommitted work and restore autocommit
+	 * @return true, if the connection can be reused
+	 */
+	private boolean reset(Connection connection) {
+		try {
+			if (!connection.getAutoCommit()) {
+				connection.rollback();
+				connection.setAutoCommit(true);
+			}
+			return !connection.isClosed();
+		}
+		catch(SQLException x) {
+			return false;
+		}
+	}
+
+	private void closeQuietly(PhysicalConnection physical) {
+		try {
+			physical.connection.close();
+		}
+		catch(SQLException x) {
+		}
+	}
+
+	/**
+	 * Close idle connections, which have exceeded idle timeout, report leaked connections and open connections up to minimum size
+	 */
+	private void housekeep() {
+		long now = System.nanoTime();
+		List<PhysicalConnection> evicted = new ArrayList<>();
+		List<Lease> leaked = new ArrayList<>();
+		int missing;
+		lock.lock();
+		try {
+			for(Iterator<PhysicalConnection> it = idle.descendingIterator(); it.hasNext() && total > minSize; ) {
+				PhysicalConnection physical = it.next();
+				if (now - physical.idleSince < idleTimeoutNanos)
+					break;//the rest have been idle for shorter time
+				it.remove();
+				evicted.add(physical);
+				total--;
+			}
+			if (leakThresholdNanos > 0)
+				for(Lease lease : leases)
+					if (!lease.leakReported && now - lease.acquired > leakThresholdNanos) {
+						lease.leakReported = true;
+						leaked.add(lease);
+					}
+			missing = (closed ? 0 : Math.max(0, Math.min(minSize, maxSize) - total));
+			total += missing;
+		}
+		finally {
+			lock.unlock();
+		}
+		evicted.forEach(this::closeQuietly);
+		for(Lease lease : leaked) {
+			StringWriter trace = new StringWriter();
+			if (lease.origin != null)//connection was acquired before leak detection was enabled
+				lease.origin.printStackTrace(new PrintWriter(trace));
+			leakReporter.accept("Possible connection leak: connection has been in use for " + (now - lease.acquired) / 1_000_000L + " ms. " + trace);
+		}
+		for(int i = 0; i < missing; i++)
+			try {
+				PhysicalConnection physical = open();
+				physical.idleSince = System.nanoTime();
+				lock.lock();
+				try {
+					idle.addLast(physical);
+					available.signal();
+				}
+				finally {
+					lock.unlock();
+				}
+			}
+			catch(SQLException x) {
+				break;//open has released the slot; retry on next round
+			}
+	}
+
+	private void startHousekeeping() {
+		if (housekeeping != null)
+			return;
+		synchronized(this) {
+			if (housekeeping == null) {
+				Housekeeping task = new Housekeeping(this);
+				task.future = getHousekeeper().scheduleWithFixedDelay(task, HOUSEKEEPING_MILLIS, HOUSEKEEPING_MILLIS, TimeUnit.MILLISECONDS);
+				housekeeping = task;
+			}
+		}
+	}
+
+	private static synchronized ScheduledExecutorService getHousekeeper() {
+		if (housekeeper == null)
+			housekeeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "slimorm-pool-housekeeper");
+				thread.setDaemon(true);
+				return thread;
+			});
+		return housekeeper;
+	}
+
+	/**
+	 * Close idle connections and stop handing out connections. Connections in use are closed, when they are returned to the pool
+	 */
+	public void close() {
+		List<PhysicalConnection> idleConnections;
+		lock.lock();
+		try {
+			closed = true;
+			idleConnections = new ArrayList<>(idle);
+			idle.clear();
+			total -= idleConnections.size();
+			available.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+		idleConnections.forEach(this::closeQuietly);
+		Housekeeping task = housekeeping;
+		if (task != null && task.future != null)
+			task.future.cancel(false);
+	}
+
+	/**
+	 * @return number of connections in use
+	 */
+	public int getActiveCount() {
+		lock.lock();
+		try {
+			return leases.size();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of open connections, which are not in use
+	 */
+	public int getIdleCount() {
+		lock.lock();
+		try {
+			return idle.size();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of threads waiting for a connection
+	 */
+	public int getWaitingCount() {
+		lock.lock();
+		try {
+			return waiting;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of connections handed out
+	 */
+	public long getAcquireCount() {
+		return acquireCount.sum();
+	}
+
+	/**
+	 * @return total time in nanoseconds spent acquiring connections, including waiting, validating and opening connections
+	 */
+	public long getAcquireNanos() {
+		return acquireNanos.sum();
+	}
+
+	/**
+	 * @return number of failed acquisitions, because no connection became available within max wait time
+	 */
+	public long getTimeoutCount() {
+		return timeouts.sum();
+	}
+}
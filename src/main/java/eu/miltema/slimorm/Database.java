@@ -2,15 +2,18 @@ package eu.miltema.slimorm;
 
 import static java.util.stream.Collectors.*;
 
+import java.math.BigInteger;
 import java.sql.*;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 import javax.naming.*;
 import javax.sql.DataSource;
 
+import eu.miltema.slimorm.OperationMetrics.Operation;
 import eu.miltema.slimorm.dialect.*;
 
 /**
@@ -19,16 +22,29 @@ import eu.miltema.slimorm.dialect.*;
  * @author Margus
  *
  */
-public class Database {
+public class Database implements AutoCloseable {
 
-	private static Map<Class<? extends Database>, Dialect> mapDialects = new HashMap<>();//dialects are database-specific and are cached in this map, since dialect initialization can be time-consuming
+	private static Map<Class<? extends Database>, Dialect> mapDialects = new ConcurrentHashMap<>();//dialects are database-specific and are cached in this map, since dialect initialization can be time-consuming
 
 	Dialect dialect;
 	private DatabaseConnectionFactory connFactory;
-	private Connection txConnection;//connection for current transaction; when not in transaction context, this field is null
+	private ConnectionPool connectionPool;//only present, when database was created with JDBC URL
+	private final ThreadLocal<Connection> txConnection = new ThreadLocal<>();//connection for calling thread's transaction; when not in transaction context, the value is null
 	private String schema = "public";
 	private Consumer<String> logger = message -> {};
 	private int batchSize = 1000;
+	private int fetchSize = 1000;
+	private int statementCacheSize;//0 means statements are not cached
+	private Map<Connection, StatementCache> statementCaches = new ConcurrentHashMap<>();//caches of connections, which are not provided by connection pool
+	private LongAdder statementCacheHits = new LongAdder(), statementCacheMisses = new LongAdder();
+	private OperationListener operationListener;
+	private Map<Class<?>, EntityCache> entityCaches = new ConcurrentHashMap<>();
+	private Map<Class<?>, QueryCache> queryCaches = new ConcurrentHashMap<>();
+	private final ThreadLocal<Set<Class<?>>> txModifiedClasses = new ThreadLocal<>();//entity classes modified in calling thread's transaction
+	private final ThreadLocal<Map<Object, Object[]>> txSnapshots = new ThreadLocal<>();//dirty-tracking snapshots taken in calling thread's transaction; stored on commit
+	private volatile Executor asyncExecutor;//executor for async operations; default executor is created on first use
+	private volatile DirtyTracker dirtyTracker;//null, when dirty tracking is disabled
+	private volatile ReplicaRouter replicaRouter;//null, when all statements go to primary database
 
 	/**
 	 * Create database object via datasource
@@ -61,7 +77,7 @@ public class Database {
 	}
 
 	/**
-	 * Create database with simple non-pooled connections
+	 * Create database with built-in connection pool. The pool can be configured via getConnectionPool
 	 * @param driverName driver class name, for example "org.postgresql.Driver"
 	 * @param jdbcUrl database URL, for example "jdbc:postgresql://localhost:5432/demoDB"
 	 * @param username SQL username
@@ -70,10 +86,26 @@ public class Database {
 	 */
 	public Database(String driverName, String jdbcUrl, String username, String password) throws Exception {
 		Class.forName(driverName).newInstance();
-		connFactory = () -> DriverManager.getConnection(jdbcUrl, username, password);
+		connFactory = connectionPool = new ConnectionPool(() -> DriverManager.getConnection(jdbcUrl, username, password));
 		initDialect();
 	}
 
+	/**
+	 * @return built-in connection pool (for configuration and metrics); null, if connections are provided by a data source or custom connection factory
+	 */
+	public ConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
+
+	/**
+	 * Close the built-in connection pool, if any. Data sources and custom connection factories are managed by the caller and are left open
+	 */
+	@Override
+	public void close() {
+		if (connectionPool != null)
+			connectionPool.close();
+	}
+
 	/**
 	 * Modify the default batch size in bulk insert
 	 * @param size batch size
@@ -84,6 +116,132 @@ public class Database {
 		return this;
 	}
 
+	/**
+	 * Modify the default number of rows fetched from database cursor at a time, when streaming query results
+	 * @param size fetch size
+	 * @return database object
+	 */
+	public Database setFetchSize(int size) {
+		this.fetchSize = size;
+		return this;
+	}
+
+	public int getFetchSize() {
+		return fetchSize;
+	}
+
+	/**
+	 * Enable prepared statement caching. Each connection caches up to given number of most recently used statements,
+	 * so that repeated statements are not parsed and planned again (PostgreSQL driver switches to server-side prepared statements, when the same statement is re-executed).
+	 * With the built-in connection pool (JDBC URL constructor), statements are cached per physical connection and reused after the connection is released.
+	 * With other connection sources, statements are cached until the connection is released by SlimORM: within a transaction and for the lifetime of a streaming query
+	 * @param size maximum number of cached statements per connection; 0 disables caching
+	 * @return database object
+	 */
+	public Database setStatementCacheSize(int size) {
+		this.statementCacheSize = size;
+		return this;
+	}
+
+	public long getStatementCacheHits() {
+		return statementCacheHits.sum();
+	}
+
+	public long getStatementCacheMisses() {
+		return statementCacheMisses.sum();
+	}
+
+	/**
+	 * Cache entities of given class in front of getById. Cached entities are invalidated by update, delete and other write operations of this database object,
+	 * but not by changes made by other applications or via plain JDBC. getById returns a shallow copy of cached entity (referenced entities are shared)
+	 * @param entityClass entity class
+	 * @param maxSize maximum number of cached entities; 0 removes the cache
+	 * @param ttlMillis time-to-live of cached entities in milliseconds; 0 means entities do not expire
+	 * @return database object
+	 */
+	public Database setEntityCache(Class<?> entityClass, int maxSize, long ttlMillis) {
+		if (maxSize > 0)
+			entityCaches.put(entityClass, new EntityCache(maxSize, ttlMillis));
+		else entityCaches.remove(entityClass);
+		return this;
+	}
+
+	/**
+	 * @param entityClass entity class
+	 * @return entity cache (for metrics or clearing); null, if entities of this class are not cached
+	 */
+	public EntityCache getEntityCache(Class<?> entityClass) {
+		return entityCaches.get(entityClass);
+	}
+
+	/**
+	 * Cache the results of listWhere for given entity class. Cached results are invalidated, when a write operation of this database object modifies the entity table.
+	 * Changes made by other applications or via plain JDBC do not invalidate the results. listWhere returns shallow copies of cached entities
+	 * @param entityClass entity class
+	 * @param maxEntities maximum total number of entities in cached results; 0 removes the cache
+	 * @return database object
+	 */
+	public Database setQueryCache(Class<?> entityClass, int maxEntities) {
+		if (maxEntities > 0)
+			queryCaches.put(entityClass, new QueryCache(maxEntities));
+		else queryCaches.remove(entityClass);
+		return this;
+	}
+
+	/**
+	 * @param entityClass entity class
+	 * @return query cache (for metrics or clearing); null, if results of this class are not cached
+	 */
+	public QueryCache getQueryCache(Class<?> entityClass) {
+		return queryCaches.get(entityClass);
+	}
+
+	/**
+	 * Route queries to read replicas. Queries via SqlQuery, getById, listWhere, listAll and streamWhere outside transaction context use replica connections,
+	 * while writes and transactions use primary database. When no replica can provide a connection, the query uses primary database.
+	 * Since replicas lag behind primary, a thread's queries can be pinned to primary for a while after the thread has written
+	 * @param routing replica selection strategy
+	 * @param pinMillis time in milliseconds, during which a thread's queries go to primary database after the thread has written; 0 disables pinning
+	 * @param replicas connection factories of replicas; none removes replica routing
+	 * @return database object
+	 */
+	public Database setReadReplicas(ReplicaRouting routing, long pinMillis, DatabaseConnectionFactory ... replicas) {
+		this.replicaRouter = (replicas.length == 0 ? null : new ReplicaRouter(routing, pinMillis, replicas));
+		return this;
+	}
+
+	/**
+	 * Enable or disable dirty tracking. When enabled, field values of entities loaded from database are snapshotted, and update(entity)
+	 * writes only the columns, which have been modified since the entity was loaded or last updated. When no column was modified, update does not access the database at all
+	 * (and consequently does not detect, whether the record still exists). Entities without snapshot (for example new objects) and bulkUpdate always write all columns.
+	 * Dirty tracking costs memory and CPU per loaded entity, JSON fields are serialized for comparison
+	 * @param enabled true to enable dirty tracking
+	 * @return database object
+	 */
+	public Database setDirtyTracking(boolean enabled) {
+		if (!enabled)
+			dirtyTracker = null;
+		else if (dirtyTracker == null)
+			dirtyTracker = new DirtyTracker(dialect.getGson());
+		return this;
+	}
+
+	/**
+	 * Snapshot field values of an entity, when dirty tracking is enabled. In transaction context, the snapshot is stored when the transaction commits
+	 * @return the same entity
+	 */
+	<T> T track(EntityProperties props, T entity) {
+		DirtyTracker tracker = dirtyTracker;
+		if (tracker != null && props.idField != null) {
+			Map<Object, Object[]> pending = txSnapshots.get();
+			if (pending != null)
+				pending.put(entity, tracker.capture(props, entity));
+			else
+				tracker.snapshot(props, entity);
+		}
+		return entity;
+	}
+
 	/**
 	 * Insert a single entity into database
 	 * @param <T> entity type
@@ -94,23 +252,59 @@ public class Database {
 	 * @throws UnauthorizedException when entity saving is unauthorized (in authorize-method)
 	 */
 	public <T> T insert(T entity) throws BindException, SQLException, UnauthorizedException {
+		return insert(entity, false);
+	}
+
+	/**
+	 * Insert a single entity into database or update the existing record, when a record with the same unique key already exists.
+	 * Unique key is the first unique constraint in @Table, the first @Column(unique = true) field or non-generated @Id field (in this order)
+	 * @param <T> entity type
+	 * @param entity entity to insert or update
+	 * @return the same entity, with @Id field (if any) being initialized
+	 * @throws SQLException when an SQL specific error occurs
+	 * @throws BindException when data binding fails or entity has no unique key
+	 * @throws UnauthorizedException when entity saving is unauthorized (in authorize-method)
+	 */
+	public <T> T upsert(T entity) throws BindException, SQLException, UnauthorizedException {
+		return insert(entity, true);
+	}
+
+	private <T> T insert(T entity, boolean upsert) throws BindException, SQLException, UnauthorizedException {
 		authorize(entity);
 		EntityProperties props = dialect.getProperties(entity.getClass());
-		return runStatements((db, conn) -> {
-			boolean hasId = (props.idField != null);
-			String sql = props.sqlInsert + props.sqlInsertValues;
-			logger.accept(sql);
-			try(PreparedStatement stmt = conn.prepareStatement(sql, hasId  ? new String[] {props.idField.columnName} : null)) {
-				bindParameters(0, entity, props, stmt, props.insertableFields);
-				stmt.executeUpdate();
-				if (hasId) {
-					ResultSet rs = stmt.getGeneratedKeys();
-					rs.next();
-					props.idField.field.set(entity, rs.getObject(1));
+		String sqlConflict = getSqlConflict(props, upsert);
+		OperationMetrics metrics = new OperationMetrics(upsert ? Operation.UPSERT : Operation.INSERT, props.clazz);
+		T inserted = null;
+		try {
+			inserted = runStatements(metrics, (db, conn) -> {
+				boolean hasId = (props.idField != null);
+				String sql = props.sqlInsert + props.sqlInsertValues + sqlConflict;
+				logger.accept(sql);
+				metrics.startPhase();
+				PreparedStatement stmt = prepareStatement(conn, sql, hasId  ? new String[] {props.idField.columnName} : null);
+				try {
+					bindParameters(0, entity, props, stmt, props.insertableFields);
+					metrics.endPrepare();
+					metrics.rowCount = stmt.executeUpdate();
+					metrics.endExecute();
+					if (hasId)
+						try(ResultSet rs = stmt.getGeneratedKeys()) {
+							rs.next();
+							props.idField.setFieldValue(entity, rs.getObject(1));
+						}
 				}
-			}
-			return entity;
-		});
+				finally {
+					releaseStatement(conn, stmt);
+				}
+				return entity;
+			});
+		}
+		finally {
+			if (!upsert)
+				invalidateCaches(props.clazz, Collections.emptyList());//new records do not affect cached entities
+			else invalidateCaches(props.clazz, props.idField == null || inserted == null ? null : Collections.singleton(props.idField.getFieldValue(entity)));//ids are unknown, when upsert failed
+		}
+		return inserted;
 	}
 
 	/**
@@ -123,32 +317,113 @@ public class Database {
 	 * @throws UnauthorizedException when entity saving is unauthorized (in authorize-method)
 	 */
 	public <T> List<T> bulkInsert(List<T> entities) throws BindException, SQLException, UnauthorizedException {
+		return bulkInsert(entities, false);
+	}
+
+	/**
+	 * Insert a collection of entities into database as a batch, updating the existing records with the same unique key (see method upsert).
+	 * A single batch must not contain multiple entities with the same unique key
+	 * @param <T> entity type
+	 * @param entities collection of entities to insert or update
+	 * @return the same entities, with @Id field (if any) being initialized
+	 * @throws SQLException when an SQL specific error occurs (see method setBatchSize() in case of large entity lists)
+	 * @throws BindException when data binding fails or entity has no unique key
+	 * @throws UnauthorizedException when entity saving is unauthorized (in authorize-method)
+	 */
+	public <T> List<T> bulkUpsert(List<T> entities) throws BindException, SQLException, UnauthorizedException {
+		return bulkInsert(entities, true);
+	}
+
+	private <T> List<T> bulkInsert(List<T> entities, boolean upsert) throws BindException, SQLException, UnauthorizedException {
 		if (entities == null || entities.isEmpty())
 			return entities;
 		for(T entity : entities)
 			authorize(entity);
 		EntityProperties props = dialect.getProperties(entities.get(0).getClass());
-		return runStatements((db, conn) -> {
-			for(List<T> batch : partition(entities, batchSize)) {//split the entity list into smaller batches, to avoid jdbc driver limit
-				String sql = props.sqlInsert + batch.stream().map(e -> props.sqlInsertValues).collect(joining(", "));
-				logger.accept(sql);
-				boolean hasId = (props.idField != null);
-				try(PreparedStatement stmt = conn.prepareStatement(sql, hasId  ? new String[] {props.idField.columnName} : null)) {
-					int ordinal = 0;
-					int batchSize = batch.size();
-					for(int i = 0; i < batchSize; i++)
-						ordinal = bindParameters(ordinal, batch.get(i), props, stmt, props.insertableFields);
-					stmt.execute();
-					if (hasId) {
-						ResultSet rs = stmt.getGeneratedKeys();
-						int rowIndex = 0;
-						while(rs.next())
-							props.idField.field.set(batch.get(rowIndex++), rs.getObject(1));
+		String sqlConflict = getSqlConflict(props, upsert);
+		OperationMetrics metrics = new OperationMetrics(upsert ? Operation.BULK_UPSERT : Operation.BULK_INSERT, props.clazz);
+		List<T> inserted = null;
+		try {
+			inserted = runStatements(metrics, (db, conn) -> {
+				for(List<T> batch : partition(entities, batchSize)) {//split the entity list into smaller batches, to avoid jdbc driver limit
+					String sql = props.sqlInsert + batch.stream().map(e -> props.sqlInsertValues).collect(joining(", ")) + sqlConflict;
+					logger.accept(sql);
+					boolean hasId = (props.idField != null);
+					metrics.startPhase();
+					PreparedStatement stmt = prepareStatement(conn, sql, hasId  ? new String[] {props.idField.columnName} : null);
+					try {
+						int ordinal = 0;
+						int batchSize = batch.size();
+						for(int i = 0; i < batchSize; i++)
+							ordinal = bindParameters(ordinal, batch.get(i), props, stmt, props.insertableFields);
+						metrics.endPrepare();
+						stmt.execute();
+						metrics.endExecute();
+						metrics.rowCount += batchSize;
+						if (hasId)
+							try(ResultSet rs = stmt.getGeneratedKeys()) {
+								int rowIndex = 0;
+								while(rs.next())
+									props.idField.setFieldValue(batch.get(rowIndex++), rs.getObject(1));
+							}
+					}
+					finally {
+						releaseStatement(conn, stmt);
 					}
 				}
-			}
-			return entities;
-		});
+				return entities;
+			});
+		}
+		finally {
+			if (!upsert)
+				invalidateCaches(props.clazz, Collections.emptyList());//new records do not affect cached entities
+			else invalidateCaches(props.clazz, props.idField == null || inserted == null ? null : entities.stream().map(props.idField::getFieldValue).collect(toList()));//ids are unknown, when upsert failed
+		}
+		return inserted;
+	}
+
+	/**
+	 * Load a collection of entities into database via bulk load protocol (COPY in PostgreSQL). This is the fastest way to insert large amounts of entities.
+	 * Unlike bulkInsert, this method does not initialize @Id fields of the entities.
+	 * Bulk load protocol requires database-specific JDBC driver, but the driver is not needed at compile time
+	 * @param <T> entity type
+	 * @param entities collection of entities to insert
+	 * @return number of records inserted
+	 * @throws SQLException when an SQL specific error occurs
+	 * @throws BindException when data binding fails or bulk load is not supported by dialect
+	 * @throws UnauthorizedException when entity saving is unauthorized (in authorize-method)
+	 */
+	public <T> long bulkCopy(Collection<T> entities) throws BindException, SQLException, UnauthorizedException {
+		if (entities == null || entities.isEmpty())
+			return 0;
+		for(T entity : entities)
+			authorize(entity);
+		EntityProperties props = dialect.getProperties(entities.iterator().next().getClass());
+		if (props.sqlCopy == null)
+			throw new BindException("Bulk load is not supported by " + dialect.getClass().getSimpleName());
+		OperationMetrics metrics = new OperationMetrics(Operation.BULK_COPY, props.clazz);
+		long count;
+		try {
+			count = runStatements(metrics, (db, conn) -> {
+				logger.accept(props.sqlCopy);
+				metrics.startPhase();
+				metrics.rowCount = dialect.copyIn(conn, props.sqlCopy, props.insertableFields, entities.iterator());
+				metrics.endExecute();
+				return metrics.rowCount;
+			});
+		}
+		finally {
+			invalidateCaches(props.clazz, Collections.emptyList());
+		}
+		return count;
+	}
+
+	private String getSqlConflict(EntityProperties props, boolean upsert) throws BindException {
+		if (!upsert)
+			return "";
+		if (props.sqlUpsert == null)
+			throw new BindException("Missing unique key or non-generated @Id field in " + props.clazz.getSimpleName() + ", or upsert is not supported by " + dialect.getClass().getSimpleName());
+		return props.sqlUpsert;
 	}
 
 	private <T> Collection<List<T>> partition(List<T> list, int size) {
@@ -170,17 +445,106 @@ public class Database {
 		EntityProperties props = dialect.getProperties(clazz);
 		if (props.idField == null)
 			throw new BindException("Missing @Id field in " + entity.getClass().getSimpleName());
-		int count = runStatements((db, conn) -> {
-			String sql = props.sqlUpdate + " WHERE " + injectIntoWhereExpression(clazz, props.sqlWhere);
-			logger.accept(sql);
-			try(PreparedStatement stmt = conn.prepareStatement(sql)) {
-				int ordinal = bindParameters(0, entity, props, stmt, props.updatableFields);
-				bindWhereParameters(stmt, ordinal, injectWhereParameters(clazz, new Object[] {props.idField.field.get(entity)}));
-				return stmt.executeUpdate();
-			}
-		});
+		DirtyTracker tracker = dirtyTracker;
+		List<FieldProperties> modifiedFields = (tracker == null ? null : tracker.getModifiedFields(props, entity, txSnapshots.get()));
+		if (modifiedFields != null && modifiedFields.isEmpty())
+			return;//entity has not been modified since it was loaded
+		Collection<FieldProperties> fields = (modifiedFields == null ? props.updatableFields : modifiedFields);
+		String sqlUpdate = (modifiedFields == null ? props.sqlUpdate : dialect.getSqlForUpdate(props.tableName, modifiedFields.stream().map(f -> f.columnName).collect(toList())));
+		OperationMetrics metrics = new OperationMetrics(Operation.UPDATE, clazz);
+		int count;
+		try {
+			count = runStatements(metrics, (db, conn) -> {
+				String sql = sqlUpdate + " WHERE " + injectIntoWhereExpression(clazz, props.sqlWhere);
+				logger.accept(sql);
+				metrics.startPhase();
+				PreparedStatement stmt = prepareStatement(conn, sql, null);
+				try {
+					int ordinal = bindParameters(0, entity, props, stmt, fields);
+					bindWhereParameters(stmt, ordinal, injectWhereParameters(clazz, new Object[] {props.idField.getFieldValue(entity)}));
+					metrics.endPrepare();
+					metrics.rowCount = stmt.executeUpdate();
+					metrics.endExecute();
+					return (int) metrics.rowCount;
+				}
+				finally {
+					releaseStatement(conn, stmt);
+				}
+			});
+		}
+		finally {
+			invalidateCaches(clazz, Collections.singleton(props.idField.getFieldValue(entity)));
+		}
 		if (count != 1)
 			throw new RecordNotFoundException();
+		if (tracker != null)
+			track(props, entity);
+	}
+
+	/**
+	 * Update a collection of existing entities as a JDBC batch, which is faster than updating one by one.
+	 * Entities are updated in the order of @Id values, to reduce the risk of deadlocks between concurrent bulk updates
+	 * @param <T> entity type
+	 * @param entities entities with new attribute values
+	 * @return entities, which did not match any record in database; empty list, if all entities were updated
+	 * @throws SQLException when an SQL specific error occurs
+	 * @throws BindException when data binding fails
+	 * @throws UnauthorizedException when entity saving is unauthorized (in authorize-method)
+	 */
+	public <T> List<T> bulkUpdate(List<T> entities) throws BindException, SQLException, UnauthorizedException {
+		if (entities == null || entities.isEmpty())
+			return new ArrayList<>();
+		for(T entity : entities)
+			authorize(entity);
+		Class<?> clazz = entities.get(0).getClass();
+		EntityProperties props = dialect.getProperties(clazz);
+		if (props.idField == null)
+			throw new BindException("Missing @Id field in " + clazz.getSimpleName());
+		List<T> sorted = sortById(entities, props.idField);
+		OperationMetrics metrics = new OperationMetrics(Operation.BULK_UPDATE, clazz);
+		List<T> unmatched;
+		try {
+			unmatched = runStatements(metrics, (db, conn) -> {
+				String sql = props.sqlUpdate + " WHERE " + injectIntoWhereExpression(clazz, props.sqlWhere);
+				logger.accept(sql);
+				List<T> notFound = new ArrayList<>();
+				for(List<T> batch : partition(sorted, batchSize)) {
+					metrics.startPhase();
+					PreparedStatement stmt = prepareStatement(conn, sql, null);
+					try {
+						for(T entity : batch) {
+							int ordinal = bindParameters(0, entity, props, stmt, props.updatableFields);
+							bindWhereParameters(stmt, ordinal, injectWhereParameters(clazz, new Object[] {props.idField.getFieldValue(entity)}));
+							stmt.addBatch();
+						}
+						metrics.endPrepare();
+						int[] counts = stmt.executeBatch();
+						metrics.endExecute();
+						for(int i = 0; i < counts.length; i++)
+							if (counts[i] == 0)
+								notFound.add(batch.get(i));
+							else if (counts[i] > 0)
+								metrics.rowCount += counts[i];
+					}
+					finally {
+						releaseStatement(conn, stmt);
+					}
+				}
+				return notFound;
+			});
+		}
+		finally {
+			invalidateCaches(clazz, entities.stream().map(props.idField::getFieldValue).collect(toList()));
+		}
+		return unmatched;
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private <T> List<T> sortById(List<T> entities, FieldProperties idField) {
+		List<T> sorted = new ArrayList<>(entities);
+		if (Comparable.class.isAssignableFrom(idField.fieldType) || idField.fieldType.isPrimitive())
+			sorted.sort(Comparator.comparing(e -> (Comparable) idField.getFieldValue(e), Comparator.nullsFirst(Comparator.naturalOrder())));
+		return sorted;
 	}
 
 	/**
@@ -195,7 +559,14 @@ public class Database {
 		EntityProperties props = dialect.getProperties(entityClass);
 		if (props.idField == null)
 			throw new BindException("Missing @Id field in " + entityClass.getSimpleName());
-		if (deleteWhere(entityClass, injectIntoWhereExpression(entityClass, props.sqlWhere), injectWhereParameters(entityClass, new Object[] {id})) != 1)
+		int count;
+		try {
+			count = deleteRows(entityClass, injectIntoWhereExpression(entityClass, props.sqlWhere), injectWhereParameters(entityClass, new Object[] {id}));
+		}
+		finally {
+			invalidateCaches(entityClass, Collections.singleton(id));
+		}
+		if (count != 1)
 			throw new RecordNotFoundException();
 	}
 
@@ -209,13 +580,50 @@ public class Database {
 	 * @throws BindException when data binding fails
 	 */
 	public int deleteWhere(Class<?> entityClass, String whereExpression, Object ... whereParameters) throws BindException, SQLException {
-		return runStatements((db, conn) -> {
+		try {
+			return deleteRows(entityClass, whereExpression, whereParameters);
+		}
+		finally {
+			invalidateCaches(entityClass, null);
+		}
+	}
+
+	/**
+	 * Delete records by ids, up to batch size ids per statement
+	 * @return number of records deleted
+	 */
+	int deleteByIds(Class<?> entityClass, Collection<?> ids) throws BindException, SQLException {
+		EntityProperties props = dialect.getProperties(entityClass);
+		if (props.idField == null)
+			throw new BindException("Missing @Id field in " + entityClass.getSimpleName());
+		int count = 0;
+		try {
+			for(List<?> chunk : partition(new ArrayList<>(ids), batchSize))
+				count += deleteRows(entityClass, props.idField.columnName + " IN (" + chunk.stream().map(id -> "?").collect(joining(",")) + ")", chunk.toArray());
+		}
+		finally {
+			invalidateCaches(entityClass, ids);
+		}
+		return count;
+	}
+
+	private int deleteRows(Class<?> entityClass, String whereExpression, Object[] whereParameters) throws BindException, SQLException {
+		OperationMetrics metrics = new OperationMetrics(Operation.DELETE, entityClass);
+		return runStatements(metrics, (db, conn) -> {
 			EntityProperties props = dialect.getProperties(entityClass);
 			String sql = props.sqlDelete + " WHERE " + injectIntoWhereExpression(entityClass, whereExpression);
 			logger.accept(sql);
-			try(PreparedStatement stmt = conn.prepareStatement(sql)) {
+			metrics.startPhase();
+			PreparedStatement stmt = prepareStatement(conn, sql, null);
+			try {
 				bindWhereParameters(stmt, 0, injectWhereParameters(entityClass, whereParameters));
-				return stmt.executeUpdate();
+				metrics.endPrepare();
+				metrics.rowCount = stmt.executeUpdate();
+				metrics.endExecute();
+				return (int) metrics.rowCount;
+			}
+			finally {
+				releaseStatement(conn, stmt);
 			}
 		});
 	}
@@ -259,15 +667,41 @@ public class Database {
 	 * @throws SQLException when an SQL specific error occurs
 	 * @throws BindException when data binding fails
 	 */
+	@SuppressWarnings("unchecked")
 	public <T> List<T> listWhere(Class<? extends T> entityClass, String whereExpression, Object ... whereParameters) throws BindException, SQLException {
-		SqlQuery q = new SqlQuery(this, dialect.getProperties(entityClass).sqlSelect, logger);
+		EntityProperties props = dialect.getProperties(entityClass);
+		SqlQuery q = new SqlQuery(this, props.sqlSelect, logger);
 		q.whereExpression = injectIntoWhereExpression(entityClass, whereExpression);
 		q.parameters = injectWhereParameters(entityClass, whereParameters);
-		return q.list(entityClass);
+		QueryCache cache = (txConnection.get() == null ? queryCaches.get(entityClass) : null);//in transaction context, results may contain uncommitted changes
+		if (cache == null)
+			return q.list(entityClass);
+		List<Object> cacheKey = new ArrayList<>();
+		cacheKey.add(q.whereExpression);
+		if (q.parameters != null)
+			cacheKey.addAll(Arrays.asList(q.parameters));
+		List<?> cached = cache.get(cacheKey);
+		if (cached != null) {
+			List<Object> copies = copyAll(props, cached);
+			copies.forEach(copy -> track(props, copy));
+			return (List<T>) copies;
+		}
+		long cacheVersion = cache.getVersion();
+		List<T> list = q.list(entityClass);
+		cache.put(cacheKey, copyAll(props, list), cacheVersion);
+		return list;
+	}
+
+	private List<Object> copyAll(EntityProperties props, List<?> entities) throws BindException {
+		List<Object> copies = new ArrayList<>(entities.size());
+		for(Object entity : entities)
+			copies.add(props.copy(entity));
+		return copies;
 	}
 
 	/**
-	 * Fetch records from the entity-related table and return records in stream
+	 * Fetch records from the entity-related table and return records in stream.
+	 * Records are read from database cursor lazily; outside transaction context, the stream must be closed to release the connection early (see SqlQuery.stream)
 	 * @param <T> entity type
 	 * @param entityClass entity class, which indirectly refers to a database table
 	 * @param whereExpression SQL WHERE expression, for example "name LIKE ?"
@@ -298,6 +732,130 @@ public class Database {
 		return q.list(entityClass);
 	}
 
+	/**
+	 * Scan the table in partitions, which are read in parallel, each on its own connection. The value range of an integer column is split into partitions of equal width.
+	 * Partitions are read on common fork-join pool, and the calling thread takes part. Therefore the stream must be created and consumed outside transaction context
+	 * (use the consumer variant instead), otherwise partitions would be read on the transaction connection of participating threads
+	 * @param <T> entity type
+	 * @param entityClass entity class, which indirectly refers to a database table
+	 * @param column integer column, which determines the partitions; null means @Id column
+	 * @param partitions number of partitions
+	 * @return parallel stream of entities
+	 * @throws SQLException when an SQL specific error occurs
+	 * @throws BindException when column is not an integer column
+	 * @throws IllegalStateException when invoked or consumed in transaction context
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> Stream<T> parallelScan(Class<? extends T> entityClass, String column, int partitions) throws BindException, SQLException {
+		if (inTransaction())
+			throw new IllegalStateException("Parallel scan stream is not supported in transaction context");
+		String partitionColumn = getPartitionColumn(entityClass, column);
+		return getPartitionRanges(entityClass, partitionColumn, partitions).parallelStream().flatMap(range -> {
+			if (inTransaction())
+				throw new IllegalStateException("Parallel scan stream is not supported in transaction context");
+			try {
+				return (Stream<T>) streamWhere(entityClass, partitionColumn + " BETWEEN ? AND ?", range[0], range[1]);
+			}
+			catch(SQLException | BindException x) {
+				throw new RuntimeException("Partition scan failed", x);
+			}
+		});
+	}
+
+	/**
+	 * Scan the table in partitions, which are passed to the consumer in parallel, on async executor. Each partition is read on its own connection.
+	 * The value range of an integer column is split into partitions of equal width. Returns when all partitions have been consumed
+	 * @param <T> entity type
+	 * @param entityClass entity class, which indirectly refers to a database table
+	 * @param column integer column, which determines the partitions; null means @Id column
+	 * @param partitions number of partitions
+	 * @param consumer consumer of partitions
+	 * @throws SQLException when an SQL specific error occurs
+	 * @throws BindException when column is not an integer column or data binding fails
+	 */
+	public <T> void parallelScan(Class<? extends T> entityClass, String column, int partitions, PartitionConsumer<T> consumer) throws BindException, SQLException {
+		String partitionColumn = getPartitionColumn(entityClass, column);
+		List<long[]> ranges = getPartitionRanges(entityClass, partitionColumn, partitions);
+		List<CompletableFuture<Object>> futures = new ArrayList<>();
+		for(int i = 0; i < ranges.size(); i++) {
+			int partition = i;
+			long[] range = ranges.get(i);
+			futures.add(async(() -> {
+				try(Stream<? extends T> entities = streamWhere(entityClass, partitionColumn + " BETWEEN ? AND ?", range[0], range[1])) {
+					consumer.accept(partition, entities);
+				}
+				return null;
+			}));
+		}
+		try {
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+		}
+		catch(CompletionException x) {
+			Throwable cause = x.getCause();
+			if (cause instanceof SQLException)
+				throw (SQLException) cause;
+			else if (cause instanceof BindException)
+				throw (BindException) cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new RuntimeException("Partition scan failed", cause);
+		}
+	}
+
+	private String getPartitionColumn(Class<?> entityClass, String column) throws BindException {
+		if (column != null)
+			return column;
+		EntityProperties props = dialect.getProperties(entityClass);
+		if (props.idField == null)
+			throw new BindException("Missing @Id field in " + entityClass.getSimpleName());
+		return props.idField.columnName;
+	}
+
+	/**
+	 * Split the value range of an integer column into partitions of equal width
+	 * @return inclusive lower and upper bounds of each non-empty partition; empty list, if the table is empty
+	 */
+	private List<long[]> getPartitionRanges(Class<?> entityClass, String column, int partitions) throws BindException, SQLException {
+		if (partitions < 1)
+			throw new IllegalArgumentException("Number of partitions must be positive");
+		EntityProperties props = dialect.getProperties(entityClass);
+		String whereExpression = injectIntoWhereExpression(entityClass, null);
+		String sql = dialect.getSqlForRange(props.tableName, column) + (whereExpression == null ? "" : " WHERE " + whereExpression);
+		OperationMetrics metrics = new OperationMetrics(Operation.QUERY, entityClass);
+		Number[] bounds = runQuery(metrics, (db, conn) -> {
+			logger.accept(sql);
+			metrics.startPhase();
+			PreparedStatement stmt = prepareStatement(conn, sql, null);
+			try {
+				bindWhereParameters(stmt, 0, injectWhereParameters(entityClass, null));
+				metrics.endPrepare();
+				try(ResultSet rs = stmt.executeQuery()) {
+					metrics.endExecute();
+					rs.next();
+					Object min = rs.getObject(1), max = rs.getObject(2);
+					if (min != null && !(min instanceof Long || min instanceof Integer || min instanceof Short))
+						throw new BindException("Partition column " + column + " must be an integer column");
+					return new Number[] {(Number) min, (Number) max};
+				}
+			}
+			finally {
+				releaseStatement(conn, stmt);
+			}
+		});
+		List<long[]> ranges = new ArrayList<>();
+		if (bounds[0] == null)
+			return ranges;
+		BigInteger min = BigInteger.valueOf(bounds[0].longValue()), max = BigInteger.valueOf(bounds[1].longValue());
+		BigInteger width = max.subtract(min).add(BigInteger.ONE);
+		for(int i = 0; i < partitions; i++) {
+			long lower = min.add(width.multiply(BigInteger.valueOf(i)).divide(BigInteger.valueOf(partitions))).longValue();
+			long upper = min.add(width.multiply(BigInteger.valueOf(i + 1)).divide(BigInteger.valueOf(partitions))).subtract(BigInteger.ONE).longValue();
+			if (lower <= upper)
+				ranges.add(new long[] {lower, upper});
+		}
+		return ranges;
+	}
+
 	/**
 	 * Fetch a single record/entity from a database table
 	 * @param <T> entity type
@@ -308,13 +866,45 @@ public class Database {
 	 * @throws BindException when data binding fails
 	 * @throws RecordNotFoundException when referenced entity was not found in database
 	 */
+	@SuppressWarnings("unchecked")
 	public <T> T getById(Class<? extends T> entityClass, Object id) throws BindException, SQLException, RecordNotFoundException {
-		String sqlWhere = injectIntoWhereExpression(entityClass, dialect.getProperties(entityClass).sqlWhere);
+		EntityProperties props = dialect.getProperties(entityClass);
+		String sqlWhere = injectIntoWhereExpression(entityClass, props.sqlWhere);
 		Object[] parameters = injectWhereParameters(entityClass, new Object[] {id});
+		EntityCache cache = (txConnection.get() == null ? entityCaches.get(entityClass) : null);//in transaction context, entities may contain uncommitted changes
+		List<Object> cacheKey = null;
+		long cacheVersion = 0;
+		if (cache != null) {
+			cacheKey = new ArrayList<>(parameters.length + 1);
+			cacheKey.add(sqlWhere);
+			cacheKey.addAll(Arrays.asList(parameters));
+			Object cached = cache.get(toIdFieldType(props.idField, id), cacheKey);
+			if (cached != null)
+				return (T) track(props, props.copy(cached));
+			cacheVersion = cache.getVersion();
+		}
 		T entity = where(sqlWhere, parameters).fetch(entityClass);
 		if (entity == null)
 			throw new RecordNotFoundException();
-		else return entity;
+		if (cache != null)
+			cache.put(props.idField.getFieldValue(entity), cacheKey, props.copy(entity), cacheVersion);//keyed by the id used for invalidation
+		return entity;
+	}
+
+	/**
+	 * @return numeric id converted to the type of @Id field, so that for example Integer 5 and Long 5 refer to the same cached entity
+	 */
+	private Object toIdFieldType(FieldProperties idField, Object id) {
+		if (!(id instanceof Number) || idField == null)
+			return id;
+		Class<?> type = idField.fieldType;
+		if (type == Long.class || type == long.class)
+			return ((Number) id).longValue();
+		else if (type == Integer.class || type == int.class)
+			return ((Number) id).intValue();
+		else if (type == Short.class || type == short.class)
+			return ((Number) id).shortValue();
+		return id;
 	}
 
 	/**
@@ -346,51 +936,269 @@ public class Database {
 	}
 
 	/**
-	 * Runs a bunch of statements in a single transaction
+	 * Create a unit of work, which collects inserts, updates and deletes and writes them in bulk on flush
+	 * @return new unit of work
+	 */
+	public UnitOfWork unitOfWork() {
+		return new UnitOfWork(this);
+	}
+
+	/**
+	 * @return true, when the calling thread is in transaction context
+	 */
+	boolean inTransaction() {
+		return txConnection.get() != null;
+	}
+
+	/**
+	 * Runs a bunch of statements in a single transaction.
+	 * The transaction is bound to the calling thread: statements issued via this database object from the same thread join the transaction,
+	 * while other threads keep running their statements in parallel on their own connections.
 	 * @param <T> entity type
 	 * @param statements statements to run
 	 * @return the return value from statements
 	 * @throws SQLException when connection allocation, release, commit or rollback fails
 	 * @throws TransactionException when a exception is thrown inside transaction logic 
 	 */
-	synchronized public <T> T transaction(TransactionStatements<T> statements) throws SQLException, TransactionException {
-		if (txConnection != null)
+	public <T> T transaction(TransactionStatements<T> statements) throws SQLException, TransactionException {
+		if (txConnection.get() != null)
 			throw new TransactionException("Nested transactions are not supported");
 
+		OperationMetrics metrics = new OperationMetrics(Operation.TRANSACTION, null);
+		Connection connection;
+		try {
+			connection = connFactory.getConnection();
+			metrics.endAcquire();
+		} catch (SQLException se) {
+			reportOperation(metrics, se);
+			throw se;
+		} catch (Exception e) {
+			reportOperation(metrics, e);
+			throw new TransactionException("Transaction failed", e);
+		}
+
+		txConnection.set(connection);
+		txModifiedClasses.set(new HashSet<>());
+		txSnapshots.set(new IdentityHashMap<>());
 		try {
 			try {
-				txConnection = connFactory.getConnection();
-			} catch (SQLException se) {
-				throw se;
-			} catch (Exception e) {
-				throw new TransactionException("Transaction failed", e);
-			}
-	
-			try {
-				txConnection.setAutoCommit(false);
-				T returnValue = runStatementsEx(statements);
-				txConnection.commit();
+				connection.setAutoCommit(false);
+				T returnValue = runStatementsEx(metrics, statements, false);
+				connection.commit();
+				DirtyTracker tracker = dirtyTracker;
+				if (tracker != null)
+					txSnapshots.get().forEach(tracker::put);
+				metrics.endExecute();
+				reportOperation(metrics, null);
 				return returnValue;
 			}
 			catch(TransactionException x) {
-				txConnection.rollback();
+				connection.rollback();
+				reportOperation(metrics, x);
 				throw x;
 			}
 			catch(Exception x) {
-				txConnection.rollback();
+				connection.rollback();
+				reportOperation(metrics, x);
 				throw new TransactionException("Transaction failed", x);
 			}
 		}
 		finally {
-			txConnection.close();
-			txConnection = null;
+			markWrite();
+			txConnection.remove();
+			Set<Class<?>> modifiedClasses = txModifiedClasses.get();
+			txModifiedClasses.remove();
+			txSnapshots.remove();
+			for(Class<?> entityClass : modifiedClasses)
+				invalidateCaches(entityClass, null);
+			closeConnection(connection);
+		}
+	}
+
+	/**
+	 * Set the executor for async operations. Up to maxConcurrency operations run at a time, the rest are queued.
+	 * Set maxConcurrency to the number of connections the database can supply, to fan out independent operations without oversubscribing the database.
+	 * Without this, async operations run on a daemon thread pool with concurrency of built-in connection pool max size (see getConnectionPool), or 10 with other connection sources.
+	 * An async operation, which is started from another async operation while all slots are taken, runs in the calling thread instead of waiting in queue
+	 * @param executor executor, which runs async operations
+	 * @param maxConcurrency maximum number of async operations running at a time
+	 * @return database object
+	 */
+	public Database setAsyncExecutor(Executor executor, int maxConcurrency) {
+		asyncExecutor = new BoundedExecutor(executor, maxConcurrency);
+		return this;
+	}
+
+	/**
+	 * Run async operations in virtual threads, one thread per operation. Requires Java 21 or later
+	 * @param maxConcurrency maximum number of async operations running at a time
+	 * @return database object
+	 * @throws UnsupportedOperationException when virtual threads are not available in current JVM
+	 */
+	public Database setAsyncVirtualThreads(int maxConcurrency) {
+		try {
+			// Implement Executors.newVirtualThreadPerTaskExecutor() without the need of Java 21 at compile time
+			return setAsyncExecutor((Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null), maxConcurrency);
 		}
+		catch(ReflectiveOperationException x) {
+			throw new UnsupportedOperationException("Virtual threads are not available in this JVM", x);
+		}
+	}
+
+	private Executor getAsyncExecutor() {
+		Executor executor = asyncExecutor;
+		if (executor == null)
+			synchronized(this) {
+				if (asyncExecutor == null) {
+					AtomicInteger threadCounter = new AtomicInteger();
+					asyncExecutor = new BoundedExecutor(Executors.newCachedThreadPool(runnable -> {
+						Thread thread = new Thread(runnable, "slimorm-async-" + threadCounter.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}), connectionPool != null ? connectionPool.getMaxSize() : 10);//concurrency follows the connection supply
+				}
+				executor = asyncExecutor;
+			}
+		return executor;
+	}
+
+	/**
+	 * Run a blocking database operation on async executor
+	 * @param <T> result type
+	 * @param operation database operation
+	 * @return future, which completes with operation result or exception
+	 */
+	<T> CompletableFuture<T> async(Callable<T> operation) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		try {
+			getAsyncExecutor().execute(() -> {
+				try {
+					future.complete(operation.call());
+				}
+				catch(Throwable x) {
+					future.completeExceptionally(x);
+				}
+			});
+		}
+		catch(RejectedExecutionException x) {
+			future.completeExceptionally(x);
+		}
+		return future;
+	}
+
+	/**
+	 * Async variant of insert. Async operations do not join the transaction of calling thread
+	 * @param <T> entity type
+	 * @param entity entity to insert
+	 * @return future of the same entity, with @Id field (if any) being initialized
+	 */
+	public <T> CompletableFuture<T> insertAsync(T entity) {
+		return async(() -> insert(entity));
+	}
+
+	/**
+	 * Async variant of bulkInsert
+	 * @param <T> entity type
+	 * @param entities collection of entities to insert
+	 * @return future of the same entities, with @Id field (if any) being initialized
+	 */
+	public <T> CompletableFuture<List<T>> bulkInsertAsync(List<T> entities) {
+		return async(() -> bulkInsert(entities));
+	}
+
+	/**
+	 * Async variant of upsert
+	 * @param <T> entity type
+	 * @param entity entity to insert or update
+	 * @return future of the same entity, with @Id field (if any) being initialized
+	 */
+	public <T> CompletableFuture<T> upsertAsync(T entity) {
+		return async(() -> upsert(entity));
+	}
+
+	/**
+	 * Async variant of update
+	 * @param entity entity with new attribute values
+	 * @return future, which completes when entity has been updated
+	 */
+	public CompletableFuture<Void> updateAsync(Object entity) {
+		return async(() -> {
+			update(entity);
+			return null;
+		});
+	}
+
+	/**
+	 * Async variant of bulkUpdate
+	 * @param <T> entity type
+	 * @param entities entities with new attribute values
+	 * @return future of entities, which did not match any record in database
+	 */
+	public <T> CompletableFuture<List<T>> bulkUpdateAsync(List<T> entities) {
+		return async(() -> bulkUpdate(entities));
+	}
+
+	/**
+	 * Async variant of delete
+	 * @param entityClass entity class, which indirectly refers to a database table
+	 * @param id entity id
+	 * @return future, which completes when record has been deleted
+	 */
+	public CompletableFuture<Void> deleteAsync(Class<?> entityClass, Object id) {
+		return async(() -> {
+			delete(entityClass, id);
+			return null;
+		});
+	}
+
+	/**
+	 * Async variant of deleteWhere
+	 * @param entityClass entity class, which indirectly refers to a database table
+	 * @param whereExpression SQL WHERE expression, for example "name LIKE ?"
+	 * @param whereParameters parameters for WHERE expression
+	 * @return future of the number of records deleted
+	 */
+	public CompletableFuture<Integer> deleteWhereAsync(Class<?> entityClass, String whereExpression, Object ... whereParameters) {
+		return async(() -> deleteWhere(entityClass, whereExpression, whereParameters));
+	}
+
+	/**
+	 * Async variant of getById
+	 * @param <T> entity type
+	 * @param entityClass entity class, which indirectly refers to a database table
+	 * @param id entity id
+	 * @return future of entity
+	 */
+	public <T> CompletableFuture<T> getByIdAsync(Class<? extends T> entityClass, Object id) {
+		return async(() -> getById(entityClass, id));
+	}
+
+	/**
+	 * Async variant of listWhere
+	 * @param <T> entity type
+	 * @param entityClass entity class, which indirectly refers to a database table
+	 * @param whereExpression SQL WHERE expression, for example "name LIKE ?"
+	 * @param whereParameters parameter values for WHERE expression
+	 * @return future of results list
+	 */
+	public <T> CompletableFuture<List<T>> listWhereAsync(Class<? extends T> entityClass, String whereExpression, Object ... whereParameters) {
+		return async(() -> listWhere(entityClass, whereExpression, whereParameters));
+	}
+
+	/**
+	 * Async variant of transaction. All statements run in the same executor thread, so that database operations issued by statements join the transaction
+	 * @param <T> entity type
+	 * @param statements statements to run
+	 * @return future of the return value from statements
+	 */
+	public <T> CompletableFuture<T> transactionAsync(TransactionStatements<T> statements) {
+		return async(() -> transaction(statements));
 	}
 
 	private <T> int bindParameters(int ordinal, T entity, EntityProperties props, PreparedStatement stmt, Collection<FieldProperties> fields) throws SQLException, BindException {
 		for(FieldProperties fprops : fields)
 			try {
-				fprops.saveBinder.bind(stmt, ++ordinal, fprops.field.get(entity));
+				fprops.saveBinder.bind(stmt, ++ordinal, fprops.getFieldValue(entity));
 			}
 			catch(IllegalAccessException iae) {
 				throw new BindException("Unable to access field " + fprops.field.getName());
@@ -403,6 +1211,8 @@ public class Database {
 			for(Object whereParam : whereParameters)
 				if (whereParam == null)
 					stmt.setNull(++ordinal, Types.VARCHAR);
+				else if (whereParam instanceof Array)
+					stmt.setArray(++ordinal, (Array) whereParam);
 				else
 					try {
 						dialect.getSaveBinder(whereParam.getClass()).bind(stmt, ++ordinal, whereParam);
@@ -412,26 +1222,189 @@ public class Database {
 					}
 	}
 
-	synchronized <T> T runStatements(TransactionStatements<T> statements) throws SQLException, BindException {
+	<T> T runStatements(OperationMetrics metrics, TransactionStatements<T> statements) throws SQLException, BindException {
 		try {
-			return runStatementsEx(statements);
+			return runStatements(metrics, statements, false);
+		}
+		finally {
+			markWrite();
+		}
+	}
+
+	/**
+	 * Run read-only statements; outside transaction context, the statements may run on a replica
+	 */
+	<T> T runQuery(OperationMetrics metrics, TransactionStatements<T> statements) throws SQLException, BindException {
+		return runStatements(metrics, statements, true);
+	}
+
+	private <T> T runStatements(OperationMetrics metrics, TransactionStatements<T> statements, boolean readOnly) throws SQLException, BindException {
+		try {
+			T returnValue = runStatementsEx(metrics, statements, readOnly);
+			reportOperation(metrics, null);
+			return returnValue;
 		}
 		catch(BindException | SQLException x) {
+			reportOperation(metrics, x);
 			throw x;
 		}
 		catch(Exception x) {
+			reportOperation(metrics, x);
 			throw new RuntimeException("Transaction failed", x);
 		}
 	}
 
-	synchronized private <T> T runStatementsEx(TransactionStatements<T> statements) throws Exception {
-		if (txConnection != null)
-			return statements.statements(this, txConnection);//in transaction context, connection management takes place in method "transaction"
+	Connection getTransactionConnection() {
+		return txConnection.get();
+	}
+
+	/**
+	 * Allocate a new connection, which is not bound to any transaction. The caller is responsible of closing the connection
+	 * @return connection
+	 * @throws SQLException when connection allocation fails
+	 */
+	Connection allocateConnection() throws SQLException {
+		try {
+			return connFactory.getConnection();
+		}
+		catch(SQLException se) {
+			throw se;
+		}
+		catch(Exception e) {
+			throw new SQLException("Unable to allocate connection", e);
+		}
+	}
+
+	/**
+	 * Allocate a connection for read-only statements, which is not bound to any transaction. The connection is provided by a replica,
+	 * unless replicas are not configured, calling thread has written recently or no replica can provide a connection. The caller is responsible of closing the connection
+	 * @return connection
+	 * @throws SQLException when connection allocation fails
+	 */
+	Connection allocateReadConnection() throws SQLException {
+		ReplicaRouter router = replicaRouter;
+		Connection connection = (router == null || router.isPinned() ? null : router.getConnection());
+		return (connection != null ? connection : allocateConnection());
+	}
+
+	private void markWrite() {
+		ReplicaRouter router = replicaRouter;
+		if (router != null)
+			router.markWrite();
+	}
+
+	private <T> T runStatementsEx(OperationMetrics metrics, TransactionStatements<T> statements, boolean readOnly) throws Exception {
+		Connection txConn = txConnection.get();
+		if (txConn != null)
+			return statements.statements(this, txConn);//in transaction context, connection management takes place in method "transaction"
 
 		// When not in transaction context, connection management takes place in this method
-		try(Connection connection = connFactory.getConnection()) {
+		metrics.startPhase();
+		Connection connection = (readOnly ? allocateReadConnection() : connFactory.getConnection());
+		metrics.endAcquire();
+		try {
 			return statements.statements(this, connection);
 		}
+		finally {
+			closeConnection(connection);
+		}
+	}
+
+	/**
+	 * Remove modified entities from entity cache and query results of the entity table from query caches.
+	 * In transaction context, caches of modified classes are cleared again when transaction ends, since concurrent readers may cache the old state until the transaction commits
+	 * @param entityClass entity class
+	 * @param ids ids of modified entities; null, if any entity of this class may have been modified
+	 */
+	private void invalidateCaches(Class<?> entityClass, Collection<?> ids) {
+		if (entityCaches.isEmpty() && queryCaches.isEmpty())
+			return;
+		EntityCache cache = entityCaches.get(entityClass);
+		if (cache != null && ids == null)
+			cache.clear();
+		else if (cache != null)
+			for(Object id : ids)
+				if (id != null)
+					cache.invalidate(id);
+		if (!queryCaches.isEmpty()) {
+			String tableName = dialect.getProperties(entityClass).tableName;
+			queryCaches.forEach((cachedClass, queryCache) -> {
+				if (dialect.getProperties(cachedClass).tableName.equals(tableName))//other entity classes may be mapped to the same table
+					queryCache.clear();
+			});
+		}
+		Set<Class<?>> modifiedClasses = txModifiedClasses.get();
+		if (modifiedClasses != null)
+			modifiedClasses.add(entityClass);
+	}
+
+	/**
+	 * Report completed operation to operation listener
+	 * @param metrics operation metrics
+	 * @param error exception, which caused the operation to fail; null, if operation succeeded
+	 */
+	void reportOperation(OperationMetrics metrics, Exception error) {
+		OperationListener listener = operationListener;
+		if (listener == null)
+			return;
+		metrics.finish(error);
+		try {
+			listener.operationCompleted(metrics);
+		}
+		catch(RuntimeException x) {
+			logger.accept("Operation listener failed: " + x);
+		}
+	}
+
+	/**
+	 * Release the connection, which was allocated by SlimORM, together with statements cached for that connection
+	 * @param connection connection
+	 * @throws SQLException when closing fails
+	 */
+	void closeConnection(Connection connection) throws SQLException {
+		ReplicaRouter router = replicaRouter;
+		if (router != null)
+			router.released(connection);
+		StatementCache cache = statementCaches.remove(connection);
+		try {
+			if (cache != null)
+				cache.close();
+		}
+		finally {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Prepare a statement or take it from statement cache. Statement must be released via releaseStatement
+	 * @param connection connection
+	 * @param sql SQL statement
+	 * @param keyColumns names of columns of generated keys; null, if generated keys are not returned
+	 * @return prepared statement
+	 * @throws SQLException when statement preparation fails
+	 */
+	PreparedStatement prepareStatement(Connection connection, String sql, String[] keyColumns) throws SQLException {
+		if (statementCacheSize <= 0)
+			return (keyColumns == null ? connection.prepareStatement(sql) : connection.prepareStatement(sql, keyColumns));
+		StatementCache cache = ConnectionPool.getStatementCache(connection, physical -> new StatementCache(physical, statementCacheSize, statementCacheHits, statementCacheMisses));
+		if (cache == null)
+			cache = statementCaches.computeIfAbsent(connection, conn -> new StatementCache(conn, statementCacheSize, statementCacheHits, statementCacheMisses));
+		return cache.prepare(sql, keyColumns);
+	}
+
+	/**
+	 * Return the statement into statement cache or close it, if caching is disabled
+	 * @param connection connection, which was used when preparing the statement
+	 * @param stmt statement
+	 * @throws SQLException when statement cleanup fails
+	 */
+	void releaseStatement(Connection connection, PreparedStatement stmt) throws SQLException {
+		StatementCache cache = ConnectionPool.getStatementCache(connection, null);
+		if (cache == null)
+			cache = statementCaches.get(connection);
+		if (cache != null)
+			cache.release(stmt);
+		else stmt.close();
 	}
 
 	public Dialect getDialect() {
@@ -439,10 +1412,7 @@ public class Database {
 	}
 
 	private void initDialect() {
-		Class<? extends Database> clazz = getClass();
-		dialect = mapDialects.get(clazz);
-		if (dialect == null)
-			mapDialects.put(clazz, dialect = getDialect());
+		dialect = mapDialects.computeIfAbsent(getClass(), clazz -> getDialect());
 	}
 
 	public String getSchema() {
@@ -458,4 +1428,14 @@ public class Database {
 		this.logger = logger;
 		return this;
 	}
+
+	/**
+	 * Set a listener, which receives timings and counters of each database operation
+	 * @param listener operation listener; null removes the listener
+	 * @return database object
+	 */
+	public Database setOperationListener(OperationListener listener) {
+		this.operationListener = listener;
+		return this;
+	}
 }
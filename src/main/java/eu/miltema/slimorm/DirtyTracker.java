@@ -0,0 +1,120 @@
+package eu.miltema.slimorm;
+
+import java.lang.ref.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.Gson;
+
+/**
+ * Snapshots of updatable field values of loaded entities. Entities are referenced weakly and by identity,
+ * so that snapshots do not keep entities in memory and entities with custom equals/hashCode do not share snapshots
+ */
+class DirtyTracker {
+
+	private Gson gson;//serializes JSON fields the same way as dialect does
+	private Map<EntityKey, Object[]> snapshots = new ConcurrentHashMap<>();
+	private ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+	private static class EntityKey extends WeakReference<Object> {
+		private int hash;
+
+		EntityKey(Object entity, ReferenceQueue<Object> queue) {
+			super(entity, queue);
+			this.hash = System.identityHashCode(entity);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof EntityKey))
+				return false;
+			Object entity = get();
+			return (entity != null && entity == ((EntityKey) obj).get());
+		}
+	}
+
+	DirtyTracker(Gson gson) {
+		this.gson = gson;
+	}
+
+	/**
+	 * Store current values of updatable fields
+	 * @param props entity properties
+	 * @param entity entity
+	 */
+	void snapshot(EntityProperties props, Object entity) {
+		put(entity, capture(props, entity));
+	}
+
+	/**
+	 * @param props entity properties
+	 * @param entity entity
+	 * @return current values of updatable fields, to be stored later with put
+	 */
+	Object[] capture(EntityProperties props, Object entity) {
+		Object[] values = new Object[props.updatableFields.size()];
+		int i = 0;
+		for(FieldProperties fprop : props.updatableFields)
+			values[i++] = snapshotValue(fprop, fprop.getFieldValue(entity));
+		return values;
+	}
+
+	/**
+	 * Store captured values of updatable fields
+	 * @param entity entity
+	 * @param values values returned by capture
+	 */
+	void put(Object entity, Object[] values) {
+		expunge();
+		snapshots.put(new EntityKey(entity, queue), values);
+	}
+
+	/**
+	 * @param props entity properties
+	 * @param entity entity
+	 * @param pending captured values, which take precedence over stored snapshots; null, if there are none
+	 * @return updatable fields, which have been modified since the snapshot; null, if entity has no snapshot
+	 */
+	List<FieldProperties> getModifiedFields(EntityProperties props, Object entity, Map<Object, Object[]> pending) {
+		expunge();
+		Object[] values = (pending != null && pending.containsKey(entity) ? pending.get(entity) : snapshots.get(new EntityKey(entity, null)));
+		if (values == null)
+			return null;
+		List<FieldProperties> modified = new ArrayList<>();
+		int i = 0;
+		for(FieldProperties fprop : props.updatableFields)
+			if (!Objects.deepEquals(values[i++], snapshotValue(fprop, fprop.getFieldValue(entity))))
+				modified.add(fprop);
+		return modified;
+	}
+
+	/**
+	 * @return value, which is not affected by later modifications of the field value: referenced entity is represented by its id, JSON value by its serialized form
+	 */
+	private Object snapshotValue(FieldProperties fprop, Object value) {
+		if (value == null)
+			return null;
+		if (fprop.foreignField != null)
+			return fprop.foreignField.getFieldValue(value);
+		if (fprop.json)
+			return gson.toJson(value);
+		if (value instanceof byte[])
+			return ((byte[]) value).clone();
+		if (value instanceof Date)//includes java.sql.Timestamp, Date and Time
+			return ((Date) value).clone();
+		return value;
+	}
+
+	private void expunge() {
+		Reference<?> ref;
+		while((ref = queue.poll()) != null)
+			snapshots.remove(ref);
+	}
+}
@@ -0,0 +1,164 @@
+package eu.miltema.slimorm;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Cache of entities of a single class, in front of Database.getById. The cache is split into segments by id,
+ * each segment being an LRU map guarded by its own lock, so that concurrent readers of different ids rarely contend.
+ * Entities are cached per id and per injected WHERE parameters, so that record-level restrictions apply to cached entities as well
+ */
+public class EntityCache {
+
+	private static final int SEGMENTS = 16;
+
+	private long ttlNanos;//0 means entities do not expire
+	private Segment[] segments = new Segment[SEGMENTS];
+	private LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+	private AtomicLong version = new AtomicLong();//incremented by each invalidation; prevents caching entities, which were read before invalidation
+
+	private static class CachedEntity {
+		Object entity;
+		long expires;
+
+		CachedEntity(Object entity, long expires) {
+			this.entity = entity;
+			this.expires = expires;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private class Segment extends LinkedHashMap<Object, Map<List<Object>, CachedEntity>> {
+		private int capacity;
+
+		Segment(int capacity) {
+			super(16, .75f, true);//access-ordered
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Object, Map<List<Object>, CachedEntity>> eldest) {
+			if (size() <= capacity)
+				return false;
+			evictions.add(eldest.getValue().size());
+			return true;
+		}
+	}
+
+	/**
+	 * @param maxSize maximum number of cached ids
+	 * @param ttlMillis time-to-live of cached entities in milliseconds; 0 means entities do not expire
+	 */
+	EntityCache(int maxSize, long ttlMillis) {
+		this.ttlNanos = ttlMillis * 1_000_000L;
+		for(int i = 0; i < SEGMENTS; i++)
+			segments[i] = new Segment(Math.max(1, (maxSize + SEGMENTS - 1) / SEGMENTS));
+	}
+
+	private Segment segment(Object id) {
+		int h = id.hashCode();
+		return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+	}
+
+	/**
+	 * @param id entity id
+	 * @param whereParameters injected WHERE expression and parameters
+	 * @return cached entity; null, if entity is not cached or has expired
+	 */
+	Object get(Object id, List<Object> whereParameters) {
+		Segment segment = segment(id);
+		synchronized(segment) {
+			Map<List<Object>, CachedEntity> variants = segment.get(id);
+			CachedEntity cached = (variants == null ? null : variants.get(whereParameters));
+			if (cached != null && ttlNanos > 0 && cached.expires - System.nanoTime() < 0) {
+				variants.remove(whereParameters);
+				if (variants.isEmpty())
+					segment.remove(id);
+				evictions.increment();
+				cached = null;
+			}
+			if (cached == null) {
+				misses.increment();
+				return null;
+			}
+			hits.increment();
+			return cached.entity;
+		}
+	}
+
+	/**
+	 * @return current version, to be passed into method put after the entity has been read from database
+	 */
+	long getVersion() {
+		return version.get();
+	}
+
+	/**
+	 * Cache the entity, unless the cache has been invalidated after the entity was read from database
+	 * @param id entity id
+	 * @param whereParameters injected WHERE expression and parameters
+	 * @param entity entity
+	 * @param readVersion cache version before the entity was read from database
+	 */
+	void put(Object id, List<Object> whereParameters, Object entity, long readVersion) {
+		Segment segment = segment(id);
+		synchronized(segment) {
+			if (version.get() != readVersion)
+				return;
+			Map<List<Object>, CachedEntity> variants = segment.get(id);
+			if (variants == null)
+				segment.put(id, variants = new HashMap<>(4));
+			variants.put(whereParameters, new CachedEntity(entity, System.nanoTime() + ttlNanos));
+		}
+	}
+
+	/**
+	 * Remove an entity from cache
+	 * @param id entity id
+	 */
+	void invalidate(Object id) {
+		version.incrementAndGet();
+		Segment segment = segment(id);
+		synchronized(segment) {
+			segment.remove(id);
+		}
+	}
+
+	/**
+	 * Remove all entities from cache
+	 */
+	public void clear() {
+		version.incrementAndGet();
+		for(Segment segment : segments)
+			synchronized(segment) {
+				segment.clear();
+			}
+	}
+
+	/**
+	 * @return number of cached ids
+	 */
+	public int size() {
+		int size = 0;
+		for(Segment segment : segments)
+			synchronized(segment) {
+				size += segment.size();
+			}
+		return size;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return number of entities removed because of size limit or expiry
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+}
@@ -1,7 +1,10 @@
 package eu.miltema.slimorm;
 
+import java.lang.invoke.*;
 import java.lang.reflect.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 import static java.util.stream.Collectors.*;
 
 import javax.persistence.*;
@@ -23,9 +26,12 @@ public class EntityProperties {
 	Collection<FieldProperties> insertableFields = new ArrayList<>();//cached fields to make INSERT binding faster
 	Collection<FieldProperties> updatableFields = new ArrayList<>();//cached fields to make UPDATE binding faster
 	public Map<String, FieldProperties> mapColumnToField = new HashMap<>(); 
+	Map<String, FieldProperties[]> rowMappers = new ConcurrentHashMap<>();//cached column-to-field mappings by SELECT statement
 	public Class<?> clazz;//this represents the final class
 	public FieldProperties idField;
-	public String sqlInsert, sqlUpdate, sqlDelete, sqlSelect, sqlWhere, sqlInsertValues;
+	public String sqlInsert, sqlUpdate, sqlDelete, sqlSelect, sqlWhere, sqlInsertValues, sqlCopy;
+	public String sqlUpsert;//conflict clause appended to INSERT-statement; null, if entity has no conflict target
+	private Supplier<Object> constructor;//null, when entity class has no parameterless constructor
 
 	public EntityProperties(Class<?> clazz, Dialect dialect) {
 		this.clazz = clazz;
@@ -43,6 +49,84 @@ public class EntityProperties {
 
 		Table table = clazz.getAnnotation(Table.class);
 		tableName = (table != null && !table.name().isEmpty() ? table.name() : dialect.getTableName(clazz.getSimpleName()));
+		initConstructor();
+	}
+
+	/**
+	 * Public constructors of classes visible to SlimORM are invoked via generated lambda, others via method handle
+	 */
+	@SuppressWarnings("unchecked")
+	private void initConstructor() {
+		Constructor<?> ctor;
+		try {
+			ctor = clazz.getDeclaredConstructor();
+			ctor.setAccessible(true);
+		}
+		catch(NoSuchMethodException | RuntimeException x) {
+			return;//entity can still be saved, but not loaded
+		}
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			MethodHandle mh = lookup.unreflectConstructor(ctor);
+			if (Modifier.isPublic(clazz.getModifiers()) && Modifier.isPublic(ctor.getModifiers()) && isVisible(clazz)) {
+				constructor = (Supplier<Object>) LambdaMetafactory.metafactory(lookup, "get", MethodType.methodType(Supplier.class),
+						MethodType.methodType(Object.class), mh, MethodType.methodType(clazz)).getTarget().invokeExact();
+				return;
+			}
+			MethodHandle genericConstructor = mh.asType(MethodType.methodType(Object.class));
+			constructor = () -> {
+				try {
+					return (Object) genericConstructor.invokeExact();
+				}
+				catch(RuntimeException | Error x) {
+					throw x;
+				}
+				catch(Throwable t) {
+					throw new RuntimeException(t);
+				}
+			};
+		}
+		catch(Throwable t) {
+			throw new SlimormInitException(clazz, "Unable to access constructor " + clazz.getSimpleName() + "()", t);
+		}
+	}
+
+	private boolean isVisible(Class<?> clazz) {
+		try {
+			return Class.forName(clazz.getName(), false, EntityProperties.class.getClassLoader()) == clazz;
+		}
+		catch(ClassNotFoundException x) {
+			return false;
+		}
+	}
+
+	/**
+	 * Create a new entity instance via parameterless constructor
+	 * @return new entity
+	 * @throws BindException when entity class has no parameterless constructor or constructor fails
+	 */
+	public Object newInstance() throws BindException {
+		if (constructor == null)
+			throw new BindException("Unable to invoke " + clazz.getSimpleName() + "()");
+		try {
+			return constructor.get();
+		}
+		catch(RuntimeException x) {
+			throw new BindException("Unable to invoke " + clazz.getSimpleName() + "()", x);
+		}
+	}
+
+	/**
+	 * Create a shallow copy of an entity: persistent fields are copied, referenced entities are shared
+	 * @param entity entity to copy
+	 * @return new entity
+	 * @throws BindException when entity class has no parameterless constructor or constructor fails
+	 */
+	Object copy(Object entity) throws BindException {
+		Object copy = newInstance();
+		for(FieldProperties field : fields)
+			field.setFieldValue(copy, field.getFieldValue(entity));
+		return copy;
 	}
 
 	private void initFields(Class<?> clazz) {
@@ -104,31 +188,32 @@ public class EntityProperties {
 				props.saveBinder = dialect.getEnumSaveBinder(props.fieldType);
 				props.loadBinder = dialect.getEnumLoadBinder(props.fieldType);
 			}
-			else if (field.isAnnotationPresent(JSon.class)) {
-				props.saveBinder = dialect.getJSonSaveBinder(props.fieldType);
-				props.loadBinder = dialect.getJSonLoadBinder(props.fieldType);
+			else if (props.json) {
+				props.saveBinder = dialect.getJSonSaveBinder(props);
+				props.loadBinder = dialect.getJSonLoadBinder(props);
 			}
 			else if (field.isAnnotationPresent(ManyToOne.class)) {
 				if (props.fieldType.isPrimitive() || props.fieldType.getPackage().getName().startsWith("java"))
 					throw new SlimormInitException(field, "@ManyToOne field must be a custom entity class", null);
 				EntityProperties feProp = dialect.getProperties(props.fieldType);
-				Class<?> feClass = feProp.clazz;
 				props.foreignField = feProp.idField;
 				SaveBinder sb = dialect.getSaveBinder(props.foreignField.fieldType);
 				LoadBinder lb = dialect.getLoadBinder(props.foreignField.fieldType);
-				props.saveBinder = (stmt, index, value) -> sb.bind(stmt, index, (value == null ? null : feProp.idField.field.get(value)));
+				props.saveBinder = (stmt, index, value) -> sb.bind(stmt, index, (value == null ? null : feProp.idField.getFieldValue(value)));
 				props.loadBinder = (rs, index) -> {
 					Object fkeyValue = lb.convert(rs, index);
 					if (fkeyValue == null)
 						return null;
-					Object foreignObject = feClass.getConstructor().newInstance();
-					feProp.idField.field.set(foreignObject, fkeyValue);
+					Object foreignObject = feProp.newInstance();
+					feProp.idField.setFieldValue(foreignObject, fkeyValue);
 					return foreignObject;
 				};
 			}
 			else {
 				props.saveBinder = dialect.getSaveBinder(field.getType());
 				props.loadBinder = dialect.getLoadBinder(field.getType());
+				if (props.fieldType.isPrimitive())
+					props.primitiveLoader = dialect.getPrimitiveLoader(props);
 			}
 			if (props.saveBinder == null)
 				throw new SlimormInitException(field, "Unsupported field type " + field.getType().toString(), null);
@@ -142,7 +227,24 @@ public class EntityProperties {
 		sqlUpdate = dialect.getSqlForUpdate(tableName, updateColumns);
 		sqlDelete = dialect.getSqlForDelete(tableName);
 		sqlSelect = dialect.getSqlForSelect(tableName, columns);
+		sqlCopy = dialect.getSqlForCopy(tableName, insertColumns);
 		if (idField != null)
 			sqlWhere = dialect.getSqlForWhere(tableName, idField.columnName);
+		Collection<String> conflictColumns = getConflictColumns();
+		if (conflictColumns != null)
+			sqlUpsert = dialect.getSqlForUpsert(tableName, conflictColumns, updateColumns.stream().filter(column -> !conflictColumns.contains(column)).collect(toList()));
+	}
+
+	/**
+	 * @return upsert conflict target: the first unique constraint of @Table, the first unique @Column or insertable @Id column (in this order); null, if none of these is present
+	 */
+	private Collection<String> getConflictColumns() {
+		Table table = clazz.getAnnotation(Table.class);
+		if (table != null && table.uniqueConstraints().length > 0)
+			return Arrays.asList(table.uniqueConstraints()[0].columnNames());
+		Optional<FieldProperties> uniqueField = fields.stream().filter(field -> field.unique).findFirst();
+		if (uniqueField.isPresent())
+			return Arrays.asList(uniqueField.get().columnName);
+		return (idField != null && idField.insertable ? Arrays.asList(idField.columnName) : null);
 	}
 }
@@ -0,0 +1,18 @@
+package eu.miltema.slimorm;
+
+import java.sql.ResultSet;
+
+/**
+ * Extracts a value from ResultSet directly into entity field. Unlike LoadBinder, primitive values are not boxed
+ */
+@FunctionalInterface
+public interface FieldLoader {
+	/**
+	 * Extracts a value from ResultSet directly into entity field
+	 * @param rs resultset
+	 * @param index column index (1-based)
+	 * @param entity target entity
+	 * @throws Exception when anything goes wrong
+	 */
+	void load(ResultSet rs, int index, Object entity) throws Exception;
+}
@@ -1,5 +1,6 @@
 package eu.miltema.slimorm;
 
+import java.lang.invoke.*;
 import java.lang.reflect.Field;
 
 import javax.persistence.*;
@@ -17,14 +18,36 @@ public class FieldProperties {
 	public Field field;
 	public boolean updatable = true;
 	public boolean insertable = true;
+	public boolean unique;//true, when the column has a unique constraint on its own
+	public boolean json;//true, when the field has @JSon annotation
 	public SaveBinder saveBinder;
 	public LoadBinder loadBinder;
 	public Class<?> fieldType;
 	public FieldProperties foreignField;//only present when the field has @ManyToOne annotation
+	public FieldLoader primitiveLoader;//only present for primitive fields; loads column value into the field without boxing
+	private MethodHandle getter;//(Object)Object
+	private MethodHandle setter;//(Object,Object)void
+	private MethodHandle primitiveSetter;//(Object,primitive)void; only present for primitive fields
 
+	/**
+	 * Initialize field properties. The field must be accessible
+	 * @param field entity field
+	 * @param dialect SQL dialect
+	 */
 	public FieldProperties(Field field, Dialect dialect) {
 		this.field = field;
 		this.fieldType = field.getType();
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			getter = lookup.unreflectGetter(field).asType(MethodType.methodType(Object.class, Object.class));
+			MethodHandle exactSetter = lookup.unreflectSetter(field);
+			setter = exactSetter.asType(MethodType.methodType(void.class, Object.class, Object.class));
+			if (fieldType.isPrimitive())
+				primitiveSetter = exactSetter.asType(MethodType.methodType(void.class, Object.class, fieldType));
+		}
+		catch(IllegalAccessException iae) {
+			throw new SlimormInitException(field, "Unable to access field", iae);
+		}
 
 		Column column = field.getAnnotation(Column.class);
 		this.columnName = (column != null && !column.name().isEmpty() ? column.name() : dialect.getColumnName(field.getName() + (field.isAnnotationPresent(ManyToOne.class) ? "Id" : "")));
@@ -32,10 +55,12 @@ public class FieldProperties {
 		if (column != null) {
 			this.insertable = column.insertable();
 			this.updatable = column.updatable();
+			this.unique = column.unique();
 		}
 
 		if (field.isAnnotationPresent(GeneratedValue.class))
 			this.insertable = this.updatable = false;
+		this.json = field.isAnnotationPresent(JSon.class);
 	}
 
 	public String toString() {
@@ -44,17 +69,77 @@ public class FieldProperties {
 
 	public Object getFieldValue(Object object) {
 		try {
-			return field.get(object);
-		} catch (IllegalArgumentException | IllegalAccessException e) {
-			throw new RuntimeException(e);
+			return (Object) getter.invokeExact(object);
+		} catch (Throwable t) {
+			throw new RuntimeException(t);
 		}
 	}
 
 	public void setFieldValue(Object object, Object value) {
 		try {
-			field.set(object, value);
-		} catch (IllegalArgumentException | IllegalAccessException e) {
-			throw new RuntimeException(e);
+			setter.invokeExact(object, value);
+		} catch (Throwable t) {
+			throw new RuntimeException(t);
+		}
+	}
+
+	/*
+	 * Primitive-specialized setters avoid boxing. These are applicable only when the field has the very same primitive type
+	 */
+
+	public void setInt(Object object, int value) {
+		try {
+			primitiveSetter.invokeExact(object, value);
+		} catch (Throwable t) {
+			throw new RuntimeException(t);
+		}
+	}
+
+	public void setLong(Object object, long value) {
+		try {
+			primitiveSetter.invokeExact(object, value);
+		} catch (Throwable t) {
+			throw new RuntimeException(t);
+		}
+	}
+
+	public void setShort(Object object, short value) {
+		try {
+			primitiveSetter.invokeExact(object, value);
+		} catch (Throwable t) {
+			throw new RuntimeException(t);
+		}
+	}
+
+	public void setByte(Object object, byte value) {
+		try {
+			primitiveSetter.invokeExact(object, value);
+		} catch (Throwable t) {
+			throw new RuntimeException(t);
+		}
+	}
+
+	public void setDouble(Object object, double value) {
+		try {
+			primitiveSetter.invokeExact(object, value);
+		} catch (Throwable t) {
+			throw new RuntimeException(t);
+		}
+	}
+
+	public void setFloat(Object object, float value) {
+		try {
+			primitiveSetter.invokeExact(object, value);
+		} catch (Throwable t) {
+			throw new RuntimeException(t);
+		}
+	}
+
+	public void setBoolean(Object object, boolean value) {
+		try {
+			primitiveSetter.invokeExact(object, value);
+		} catch (Throwable t) {
+			throw new RuntimeException(t);
 		}
 	}
 }
@@ -12,4 +12,8 @@ import java.lang.annotation.*;
 @Target(ElementType.FIELD)
 public @interface JSon {
 
+	/**
+	 * @return true, when the column has type jsonb; false, when the column has type json
+	 */
+	boolean jsonb() default false;
 }
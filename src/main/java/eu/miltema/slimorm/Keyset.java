@@ -0,0 +1,170 @@
+package eu.miltema.slimorm;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.*;
+import java.util.*;
+import static java.util.stream.Collectors.*;
+import java.util.stream.IntStream;
+
+import com.google.gson.Gson;
+
+/**
+ * Keyset (seek) pagination: ordering columns, the condition for seeking past the last seen record and continuation token encoding.
+ * Continuation token is an opaque URL-safe string, which contains the key values of the last seen record
+ */
+class Keyset {
+
+	private static final Gson gson = new Gson();
+	private static final Set<Class<?>> KEY_TYPES = new HashSet<>(Arrays.asList(String.class, Integer.class, int.class, Long.class, long.class, Short.class, short.class,
+			Byte.class, byte.class, Double.class, double.class, Float.class, float.class, Boolean.class, boolean.class, BigDecimal.class,
+			Timestamp.class, Instant.class, LocalDate.class, LocalDateTime.class, ZonedDateTime.class));//types supported by parseKey, in addition to enums
+
+	private EntityProperties props;
+	private String[] columns;
+	private boolean[] descending;
+	private FieldProperties[] fields;
+
+	/**
+	 * @param props entity properties
+	 * @param orderColumns ordering columns, for example "created DESC, id"
+	 * @throws BindException when an ordering column is not a field of the entity, or its type cannot be encoded into continuation token
+	 */
+	Keyset(EntityProperties props, String orderColumns) throws BindException {
+		this.props = props;
+		String[] items = orderColumns.split(",");
+		columns = new String[items.length];
+		descending = new boolean[items.length];
+		fields = new FieldProperties[items.length];
+		for(int i = 0; i < items.length; i++) {
+			String[] parts = items[i].trim().split("\\s+");
+			if (parts.length > 2 || (parts.length == 2 && !parts[1].equalsIgnoreCase("ASC") && !parts[1].equalsIgnoreCase("DESC")))
+				throw new BindException("Invalid keyset column " + items[i].trim());
+			columns[i] = parts[0];
+			descending[i] = (parts.length == 2 && parts[1].equalsIgnoreCase("DESC"));
+			fields[i] = props.mapColumnToField.get(columns[i]);
+			if (fields[i] == null || fields[i].foreignField != null)
+				throw new BindException("Keyset column " + columns[i] + " is not a simple field of " + props.clazz.getSimpleName());
+			if (fields[i].json || !(fields[i].fieldType.isEnum() || KEY_TYPES.contains(fields[i].fieldType)))
+				throw new BindException("Unsupported keyset column type " + fields[i].fieldType.getSimpleName());
+		}
+	}
+
+	/**
+	 * @return columns list for ORDER BY
+	 */
+	String getOrderBy() {
+		return IntStream.range(0, columns.length).mapToObj(i -> columns[i] + (descending[i] ? " DESC" : "")).collect(joining(","));
+	}
+
+	private boolean isUniform() {
+		for(boolean desc : descending)
+			if (desc != descending[0])
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return WHERE condition, which selects records after the last seen record
+	 */
+	String getSqlSeek() {
+		if (columns.length > 1 && isUniform())//row value comparison can use a multi-column index directly
+			return "(" + String.join(",", columns) + ")" + (descending[0] ? " < (" : " > (") + Arrays.stream(columns).map(c -> "?").collect(joining(",")) + ")";
+		StringBuilder sb = new StringBuilder("(");
+		for(int i = 0; i < columns.length; i++) {
+			if (i > 0)
+				sb.append(" OR ");
+			sb.append('(');
+			for(int j = 0; j < i; j++)
+				sb.append(columns[j]).append("=? AND ");
+			sb.append(columns[i]).append(descending[i] ? "<?" : ">?").append(')');
+		}
+		return sb.append(')').toString();
+	}
+
+	/**
+	 * @param keys key values of the last seen record
+	 * @return parameters for the condition from getSqlSeek
+	 */
+	Object[] getSeekParameters(Object[] keys) {
+		if (columns.length > 1 && isUniform())
+			return keys;
+		List<Object> params = new ArrayList<>();
+		for(int i = 0; i < keys.length; i++)
+			for(int j = 0; j <= i; j++)
+				params.add(keys[j]);
+		return params.toArray();
+	}
+
+	/**
+	 * @param entity the last record of a page
+	 * @return continuation token
+	 * @throws BindException when a key value is null
+	 */
+	String encode(Object entity) throws BindException {
+		String[] keys = new String[fields.length];
+		for(int i = 0; i < fields.length; i++) {
+			Object value = fields[i].getFieldValue(entity);
+			if (value == null)
+				throw new BindException("Keyset column " + columns[i] + " must not be null");
+			keys[i] = (value instanceof Enum ? ((Enum<?>) value).name() : value.toString());
+		}
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(gson.toJson(keys).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @param token continuation token
+	 * @return key values of the last seen record
+	 * @throws BindException when the token is invalid for this keyset
+	 */
+	Object[] decode(String token) throws BindException {
+		try {
+			String[] keys = gson.fromJson(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8), String[].class);
+			if (keys == null || keys.length != fields.length)
+				throw new IllegalArgumentException("Key count mismatch");
+			Object[] values = new Object[keys.length];
+			for(int i = 0; i < keys.length; i++)
+				values[i] = parseKey(fields[i].fieldType, keys[i]);
+			return values;
+		}
+		catch(BindException x) {
+			throw x;
+		}
+		catch(RuntimeException x) {
+			throw new BindException("Invalid continuation token for " + props.clazz.getSimpleName(), x);
+		}
+	}
+
+	private Object parseKey(Class<?> type, String key) throws BindException {
+		if (type == String.class || type.isEnum())
+			return key;
+		else if (type == Integer.class || type == int.class)
+			return Integer.valueOf(key);
+		else if (type == Long.class || type == long.class)
+			return Long.valueOf(key);
+		else if (type == Short.class || type == short.class)
+			return Short.valueOf(key);
+		else if (type == Byte.class || type == byte.class)
+			return Byte.valueOf(key);
+		else if (type == Double.class || type == double.class)
+			return Double.valueOf(key);
+		else if (type == Float.class || type == float.class)
+			return Float.valueOf(key);
+		else if (type == Boolean.class || type == boolean.class)
+			return Boolean.valueOf(key);
+		else if (type == BigDecimal.class)
+			return new BigDecimal(key);
+		else if (type == Timestamp.class)
+			return Timestamp.valueOf(key);
+		else if (type == Instant.class)
+			return Instant.parse(key);
+		else if (type == LocalDate.class)
+			return LocalDate.parse(key);
+		else if (type == LocalDateTime.class)
+			return LocalDateTime.parse(key);
+		else if (type == ZonedDateTime.class)
+			return ZonedDateTime.parse(key);
+		throw new BindException("Unsupported keyset column type " + type.getSimpleName());
+	}
+}
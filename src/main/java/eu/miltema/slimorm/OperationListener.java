@@ -0,0 +1,14 @@
+package eu.miltema.slimorm;
+
+/**
+ * Receives timings and counters of completed database operations, for example to feed latency histograms
+ */
+@FunctionalInterface
+public interface OperationListener {
+
+	/**
+	 * Invoked after each database operation, both succeeded and failed. Invoked in the thread, which completed the operation
+	 * @param metrics operation metrics
+	 */
+	void operationCompleted(OperationMetrics metrics);
+}
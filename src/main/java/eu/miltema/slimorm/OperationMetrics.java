@@ -0,0 +1,71 @@
+package eu.miltema.slimorm;
+
+/**
+ * Timings and counters of a single database operation, reported to OperationListener.
+ * Phase timings are in nanoseconds; connection acquisition and statement phases do not add up to total time exactly,
+ * since total time also includes SlimORM overhead
+ */
+public class OperationMetrics {
+
+	public enum Operation {INSERT, BULK_INSERT, BULK_COPY, UPSERT, BULK_UPSERT, UPDATE, BULK_UPDATE, DELETE, QUERY, TRANSACTION}
+
+	public final Operation operation;
+	public final Class<?> entityClass;//null, if operation is not related to a specific entity class
+	public long acquireNanos;//time spent waiting for a connection
+	public long prepareNanos;//time spent preparing statements and binding parameters
+	public long executeNanos;//time spent executing statements
+	public long mapNanos;//time spent reading rows and converting these into entities
+	public long totalNanos;
+	public long rowCount;//number of rows inserted, updated, deleted or read
+	public int batchCount;//number of statements executed
+	public Exception error;//null, if operation succeeded
+
+	private long startTime;
+	private long phaseStart;
+
+	OperationMetrics(Operation operation, Class<?> entityClass) {
+		this.operation = operation;
+		this.entityClass = entityClass;
+		this.startTime = this.phaseStart = System.nanoTime();
+	}
+
+	/**
+	 * Mark the start of a phase. Each end-method marks the start of the next phase
+	 */
+	void startPhase() {
+		phaseStart = System.nanoTime();
+	}
+
+	private long endPhase() {
+		long now = System.nanoTime();
+		long duration = now - phaseStart;
+		phaseStart = now;
+		return duration;
+	}
+
+	void endAcquire() {
+		acquireNanos += endPhase();
+	}
+
+	void endPrepare() {
+		prepareNanos += endPhase();
+	}
+
+	void endExecute() {
+		executeNanos += endPhase();
+		batchCount++;
+	}
+
+	void endMap() {
+		mapNanos += endPhase();
+	}
+
+	void finish(Exception error) {
+		this.totalNanos = System.nanoTime() - startTime;
+		this.error = error;
+	}
+
+	public String toString() {
+		return operation + (entityClass == null ? "" : " " + entityClass.getSimpleName()) + ": " + (totalNanos / 1000) + "us, " + rowCount + " rows" + (error == null ? "" : ", failed");
+	}
+}
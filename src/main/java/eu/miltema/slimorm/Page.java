@@ -0,0 +1,24 @@
+package eu.miltema.slimorm;
+
+import java.util.List;
+
+/**
+ * A single page of keyset pagination results (see SqlQuery.page)
+ */
+public class Page<T> {
+
+	public final List<T> entities;
+	public final String nextToken;//continuation token for the next page; null, if this is the last page
+
+	Page(List<T> entities, String nextToken) {
+		this.entities = entities;
+		this.nextToken = nextToken;
+	}
+
+	/**
+	 * @return true, if there are more results after this page
+	 */
+	public boolean hasNext() {
+		return (nextToken != null);
+	}
+}
@@ -0,0 +1,17 @@
+package eu.miltema.slimorm;
+
+import java.util.stream.Stream;
+
+/**
+ * Consumes the entities of a single partition in parallel scan
+ */
+@FunctionalInterface
+public interface PartitionConsumer<T> {
+	/**
+	 * Invoked concurrently for different partitions
+	 * @param partition partition number, starting from 0
+	 * @param entities entities of this partition, read from database cursor
+	 * @throws Exception when anything goes wrong
+	 */
+	void accept(int partition, Stream<? extends T> entities) throws Exception;
+}
@@ -0,0 +1,95 @@
+package eu.miltema.slimorm;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Cache of listWhere results of a single entity class. The cache is bounded by the total number of cached entities:
+ * least recently used results are evicted, when the limit is exceeded
+ */
+public class QueryCache {
+
+	private int maxEntities;
+	private int entityCount;//total number of entities in cached results
+	private LinkedHashMap<List<Object>, List<?>> results = new LinkedHashMap<>(16, .75f, true);//access-ordered
+	private LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+	private AtomicLong version = new AtomicLong();//incremented by each invalidation; prevents caching results, which were read before invalidation
+
+	/**
+	 * @param maxEntities maximum total number of entities in cached results
+	 */
+	QueryCache(int maxEntities) {
+		this.maxEntities = maxEntities;
+	}
+
+	/**
+	 * @param key injected WHERE expression and parameters
+	 * @return cached result; null, if result is not cached
+	 */
+	synchronized List<?> get(List<Object> key) {
+		List<?> result = results.get(key);
+		if (result == null)
+			misses.increment();
+		else hits.increment();
+		return result;
+	}
+
+	/**
+	 * @return current version, to be passed into method put after the result has been read from database
+	 */
+	long getVersion() {
+		return version.get();
+	}
+
+	/**
+	 * Cache the result, unless the cache has been invalidated after the result was read from database. Results larger than cache size are not cached
+	 * @param key injected WHERE expression and parameters
+	 * @param result list of entities
+	 * @param readVersion cache version before the result was read from database
+	 */
+	synchronized void put(List<Object> key, List<?> result, long readVersion) {
+		if (version.get() != readVersion || result.size() > maxEntities)
+			return;
+		List<?> previous = results.put(key, result);
+		entityCount += result.size() - (previous == null ? 0 : previous.size());
+		Iterator<List<?>> it = results.values().iterator();
+		while(entityCount > maxEntities) {
+			entityCount -= it.next().size();
+			it.remove();
+			evictions.increment();
+		}
+	}
+
+	/**
+	 * Remove all results from cache
+	 */
+	public void clear() {
+		version.incrementAndGet();
+		synchronized(this) {
+			results.clear();
+			entityCount = 0;
+		}
+	}
+
+	/**
+	 * @return number of cached results
+	 */
+	public synchronized int size() {
+		return results.size();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return number of results removed because of size limit
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+}
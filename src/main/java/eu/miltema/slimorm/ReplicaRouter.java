@@ -0,0 +1,99 @@
+package eu.miltema.slimorm;
+
+import java.sql.Connection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Selects read replica connections and pins a thread's reads to primary database for a while after the thread has written
+ */
+class ReplicaRouter {
+
+	private DatabaseConnectionFactory[] replicas;
+	private ReplicaRouting routing;
+	private long pinNanos;//0 means reads are never pinned to primary
+	private AtomicInteger[] busy;//number of connections in use by replica
+	private AtomicInteger next = new AtomicInteger();
+	private Map<Connection, Integer> replicaOfConnection = new ConcurrentHashMap<>();
+	private final ThreadLocal<Long> lastWrite = new ThreadLocal<>();//nano time of calling thread's last write
+
+	/**
+	 * @param routing replica selection strategy
+	 * @param pinMillis time in milliseconds, during which a thread's reads go to primary after the thread has written; 0 disables pinning
+	 * @param replicas connection factories of replicas
+	 */
+	ReplicaRouter(ReplicaRouting routing, long pinMillis, DatabaseConnectionFactory[] replicas) {
+		this.routing = routing;
+		this.pinNanos = pinMillis * 1_000_000L;
+		this.replicas = replicas.clone();
+		this.busy = new AtomicInteger[replicas.length];
+		for(int i = 0; i < replicas.length; i++)
+			busy[i] = new AtomicInteger();
+	}
+
+	/**
+	 * Register a write by calling thread
+	 */
+	void markWrite() {
+		if (pinNanos > 0)
+			lastWrite.set(System.nanoTime());
+	}
+
+	/**
+	 * @return true, if calling thread must read from primary, since it has written recently
+	 */
+	boolean isPinned() {
+		Long written = lastWrite.get();
+		if (written == null)
+			return false;
+		if (System.nanoTime() - written < pinNanos)
+			return true;
+		lastWrite.remove();
+		return false;
+	}
+
+	/**
+	 * Allocate a connection from selected replica. When the replica fails to provide a connection, the other replicas are tried
+	 * @return replica connection; null, if no replica could provide a connection
+	 */
+	Connection getConnection() {
+		int first = select();
+		for(int i = 0; i < replicas.length; i++) {
+			int index = (first + i) % replicas.length;
+			busy[index].incrementAndGet();
+			try {
+				Connection connection = replicas[index].getConnection();
+				replicaOfConnection.put(connection, index);
+				return connection;
+			}
+			catch(Exception x) {
+				busy[index].decrementAndGet();
+			}
+		}
+		return null;
+	}
+
+	private int select() {
+		int start = (next.getAndIncrement() & Integer.MAX_VALUE) % replicas.length;
+		if (routing == ReplicaRouting.ROUND_ROBIN)
+			return start;
+		int selected = start;
+		for(int i = 1; i < replicas.length; i++) {
+			int index = (start + i) % replicas.length;
+			if (busy[index].get() < busy[selected].get())
+				selected = index;
+		}
+		return selected;
+	}
+
+	/**
+	 * Register that a connection has been closed
+	 * @param connection connection; may also be a primary connection
+	 */
+	void released(Connection connection) {
+		Integer index = replicaOfConnection.remove(connection);
+		if (index != null)
+			busy[index].decrementAndGet();
+	}
+}
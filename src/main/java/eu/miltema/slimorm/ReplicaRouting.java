@@ -0,0 +1,11 @@
+package eu.miltema.slimorm;
+
+/**
+ * Strategy for selecting a read replica
+ */
+public enum ReplicaRouting {
+	/** Replicas are used in turns */
+	ROUND_ROBIN,
+	/** Replica with the fewest connections in use is selected; ties are broken in turns */
+	LEAST_BUSY
+}
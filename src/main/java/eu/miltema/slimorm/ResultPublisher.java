@@ -0,0 +1,154 @@
+package eu.miltema.slimorm;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.*;
+import java.util.stream.Stream;
+
+/**
+ * Publisher of query results with backpressure. Rows are read from database cursor only as fast as the subscriber requests them,
+ * so memory consumption does not depend on the size of the result. Each subscription runs the query separately, on database async executor.
+ * The interfaces mirror java.util.concurrent.Flow (Java 9+), so that adapting to Flow or Reactive Streams takes a few lambdas
+ */
+public class ResultPublisher<T> {
+
+	public interface Subscriber<T> {
+		void onSubscribe(Subscription subscription);
+		void onNext(T item);
+		void onError(Throwable throwable);
+		void onComplete();
+	}
+
+	public interface Subscription {
+		void request(long n);
+		void cancel();
+	}
+
+	private Database database;
+	private SqlQuery query;
+	private Class<? extends T> entityClass;
+
+	ResultPublisher(Database database, SqlQuery query, Class<? extends T> entityClass) {
+		this.database = database;
+		this.query = query;
+		this.entityClass = entityClass;
+	}
+
+	/**
+	 * Subscribe to query results. The query is executed, when subscriber requests the first items
+	 * @param subscriber subscriber
+	 */
+	public void subscribe(Subscriber<? super T> subscriber) {
+		subscriber.onSubscribe(new CursorSubscription(subscriber));
+	}
+
+	/**
+	 * Subscription, which reads the cursor in a single drain loop at a time. Signals may come from any thread, but the cursor is only used by the draining thread
+	 */
+	private class CursorSubscription implements Subscription {
+		private Subscriber<? super T> subscriber;
+		private AtomicLong demand = new AtomicLong();
+		private AtomicInteger pendingSignals = new AtomicInteger();//>0 while a drain loop is scheduled or running
+		private volatile boolean cancelled;
+		private volatile Throwable invalidRequest;
+		private boolean done;//accessed by draining thread only
+		private Stream<? extends T> stream;//accessed by draining thread only
+		private Iterator<? extends T> iterator;//accessed by draining thread only
+
+		CursorSubscription(Subscriber<? super T> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0)
+				invalidRequest = new IllegalArgumentException("Requested item count must be positive");
+			else demand.accumulateAndGet(n, (current, added) -> (current + added < 0 ? Long.MAX_VALUE : current + added));
+			schedule();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			schedule();
+		}
+
+		private void schedule() {
+			if (pendingSignals.getAndIncrement() == 0)
+				database.async(() -> {
+					drain();
+					return null;
+				}).whenComplete((result, failure) -> {
+					if (failure != null)
+						abort(failure);
+				});
+		}
+
+		/**
+		 * Drain loop was rejected by executor or failed unexpectedly. Pending signals have not been cleared, so no other thread is draining
+		 */
+		private void abort(Throwable failure) {
+			boolean wasDone = done;
+			try {
+				finish();
+			}
+			catch(RuntimeException rte) {
+				failure.addSuppressed(rte);
+			}
+			pendingSignals.set(0);
+			if (!wasDone)
+				subscriber.onError(failure);
+		}
+
+		private void drain() {
+			int signals = 1;
+			do {
+				if (!done)
+					emit();
+				signals = pendingSignals.addAndGet(-signals);
+			} while(signals != 0);
+		}
+
+		private void emit() {
+			try {
+				if (invalidRequest != null)
+					throw invalidRequest;
+				if (cancelled) {
+					finish();
+					return;
+				}
+				if (iterator == null) {
+					stream = query.stream(entityClass);
+					iterator = stream.iterator();
+				}
+				while(demand.get() > 0 && !cancelled) {
+					if (!iterator.hasNext()) {
+						finish();
+						subscriber.onComplete();
+						return;
+					}
+					T entity = iterator.next();
+					if (demand.get() != Long.MAX_VALUE)//unbounded demand is never decremented
+						demand.decrementAndGet();
+					subscriber.onNext(entity);
+				}
+				if (cancelled)
+					finish();
+			}
+			catch(Throwable x) {
+				try {
+					finish();
+				}
+				catch(RuntimeException rte) {
+					x.addSuppressed(rte);
+				}
+				subscriber.onError(x);
+			}
+		}
+
+		private void finish() {
+			done = true;
+			if (stream != null)
+				stream.close();//releases statement and connection
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package eu.miltema.slimorm;
+
+import java.sql.*;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over an open ResultSet. Rows are read from database cursor and converted to entities in chunks,
+ * so that memory consumption does not depend on the size of the result.
+ * Statement and connection are released when the cursor has been exhausted or closed
+ */
+class ResultSetSpliterator<T> extends Spliterators.AbstractSpliterator<T> implements AutoCloseable {
+
+	@FunctionalInterface
+	interface RowMapper<T> {
+		T map(ResultSet rs) throws Exception;
+	}
+
+	@FunctionalInterface
+	interface ChunkProcessor<T> {
+		void process(List<T> chunk) throws Exception;
+	}
+
+	private Database database;
+	private Connection connection;
+	private boolean ownsConnection;//true, when connection was allocated for this cursor only; false in transaction context
+	private PreparedStatement stmt;
+	private ResultSet rs;
+	private OperationMetrics metrics;
+	private Exception error;
+	private RowMapper<T> rowMapper;
+	private ChunkProcessor<T> chunkProcessor;
+	private int chunkSize;
+	private List<T> chunk;
+	private int position;
+	private boolean isClosed;
+
+	/**
+	 * @param database database, which manages connection and statement
+	 * @param connection connection
+	 * @param ownsConnection true, if connection must be committed and closed together with this cursor; false, if connection is managed by transaction
+	 * @param stmt statement, which produced the resultset
+	 * @param rs resultset
+	 * @param chunkSize number of rows in a chunk
+	 * @param metrics operation metrics, reported when the cursor is closed
+	 * @param rowMapper converts current row to entity
+	 * @param chunkProcessor post-processes entities of a chunk, before these are handed out
+	 */
+	ResultSetSpliterator(Database database, Connection connection, boolean ownsConnection, PreparedStatement stmt, ResultSet rs, int chunkSize, OperationMetrics metrics, RowMapper<T> rowMapper, ChunkProcessor<T> chunkProcessor) {
+		super(Long.MAX_VALUE, ORDERED | NONNULL);
+		this.database = database;
+		this.connection = connection;
+		this.ownsConnection = ownsConnection;
+		this.stmt = stmt;
+		this.rs = rs;
+		this.chunkSize = chunkSize;
+		this.metrics = metrics;
+		this.rowMapper = rowMapper;
+		this.chunkProcessor = chunkProcessor;
+		this.chunk = new ArrayList<>(chunkSize);
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super T> action) {
+		if (position >= chunk.size() && !readChunk())
+			return false;
+		T entity = chunk.get(position);
+		chunk.set(position++, null);//entity is not referenced by the cursor any more
+		action.accept(entity);
+		return true;
+	}
+
+	private boolean readChunk() {
+		chunk.clear();
+		position = 0;
+		if (isClosed)
+			return false;
+		try {
+			metrics.startPhase();
+			while(chunk.size() < chunkSize && rs.next())
+				chunk.add(rowMapper.map(rs));
+			metrics.endMap();
+			metrics.rowCount += chunk.size();
+			if (!chunk.isEmpty())
+				chunkProcessor.process(chunk);
+			if (chunk.size() < chunkSize)
+				close();//cursor exhausted, release resources without waiting for stream to be closed
+			return !chunk.isEmpty();
+		}
+		catch(Exception x) {
+			error = x;
+			try {
+				close();
+			}
+			catch(RuntimeException rte) {
+				x.addSuppressed(rte);
+			}
+			throw new RuntimeException("Unable to read next row", x);
+		}
+	}
+
+	@Override
+	public void close() {
+		if (isClosed)
+			return;
+		isClosed = true;
+		try {
+			try {
+				releaseStatement();
+			}
+			finally {
+				if (ownsConnection)
+					database.closeConnection(connection);
+			}
+		}
+		catch(SQLException x) {
+			if (error == null)
+				error = x;
+			throw new RuntimeException("Unable to close cursor", x);
+		}
+		finally {
+			database.reportOperation(metrics, error);
+		}
+	}
+
+	private void releaseStatement() throws SQLException {
+		try {
+			try {
+				rs.close();
+			}
+			finally {
+				database.releaseStatement(connection, stmt);
+			}
+		}
+		finally {
+			if (ownsConnection)
+				endTransaction();
+		}
+	}
+
+	/**
+	 * Commit the cursor transaction, or roll it back after a read failure. Autocommit is restored in any case, since the connection may be returned to a data source as is
+	 */
+	private void endTransaction() throws SQLException {
+		try {
+			if (error == null)
+				connection.commit();
+			else connection.rollback();
+		}
+		finally {
+			connection.setAutoCommit(true);
+		}
+	}
+}
@@ -2,11 +2,14 @@ package eu.miltema.slimorm;
 
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 import static java.util.stream.Collectors.*;
-import java.util.stream.Stream;
+import java.util.stream.*;
+
+import eu.miltema.slimorm.OperationMetrics.Operation;
 
 /**
  * A convenience class for building SQL query
@@ -16,6 +19,9 @@ import java.util.stream.Stream;
  */
 public class SqlQuery {
 
+	private static final int MAX_CACHED_ROW_MAPPERS = 256;//per entity class; limits the cache, when application generates SQL dynamically
+	private static final int MAX_REFERENCE_KEYS = 10000;//keys per query, when loading referenced entities
+
 	private Database database;
 	String sql;
 	String whereExpression;
@@ -26,6 +32,11 @@ public class SqlQuery {
 	private boolean initReferences = false;//=true when referenced columns must be initialized
 	private String referencedColumns;
 	private Map<Class<?>, String> mapReferencedColumns;
+	private int referenceDepth = 1;
+	private int fetchSize;//0 means database default
+	private String keysetColumns;
+	private String selectColumns;//null means all fields of target class
+	private Class<?> sourceClass;//null means the table of target class
 
 	/**
 	 * Create a query object with custom SQL and custom logger
@@ -40,7 +51,9 @@ public class SqlQuery {
 	}
 
 	/**
-	 * Return the results as a stream
+	 * Return the results as a stream. Rows are fetched from a database cursor and converted to entities lazily, in chunks of fetch size.
+	 * Outside transaction context, the stream holds a dedicated connection until the stream is exhausted or closed.
+	 * Therefore, the stream should be used in try-with-resources block
 	 * @param <T> entity type
 	 * @param entityClass target entity class
 	 * @return entities stream
@@ -48,7 +61,71 @@ public class SqlQuery {
 	 * @throws BindException when data binding fails
 	 */
 	public <T> Stream<? extends T> stream(Class<? extends T> entityClass) throws SQLException, BindException {
-		return list(entityClass).stream();
+		EntityProperties props = database.dialect.getProperties(entityClass);
+		int rowsInChunk = (fetchSize > 0 ? fetchSize : database.getFetchSize());
+		String sql = getSqlStatement(entityClass);
+		logger.accept(sql);
+		OperationMetrics metrics = new OperationMetrics(Operation.QUERY, entityClass);
+		Connection txConn = database.getTransactionConnection();
+		Connection conn;
+		try {
+			conn = (txConn != null ? txConn : database.allocateReadConnection());
+			metrics.endAcquire();
+		}
+		catch(SQLException x) {
+			database.reportOperation(metrics, x);
+			throw x;
+		}
+		PreparedStatement stmt = null;
+		try {
+			if (txConn == null)
+				conn.setAutoCommit(false);//PostgreSQL driver uses a server-side cursor only when autocommit is off
+			stmt = database.prepareStatement(conn, sql, null);
+			stmt.setFetchSize(rowsInChunk);
+			database.bindWhereParameters(stmt, 0, parameters);
+			metrics.endPrepare();
+			ResultSet rs = stmt.executeQuery();
+			metrics.endExecute();
+			FieldProperties[] fields = getFieldMappers(rs, props, getSqlSelect(props));
+			ResultSetSpliterator<T> cursor = new ResultSetSpliterator<T>(database, conn, txConn == null, stmt, rs, rowsInChunk, metrics,
+					r -> buildEntity(props, r, fields),
+					chunk -> attachReferences(fields, () -> chunk.stream(), conn, metrics));
+			return StreamSupport.stream(cursor, false).onClose(cursor::close);
+		}
+		catch(SQLException | BindException | RuntimeException x) {
+			database.reportOperation(metrics, x);
+			try {
+				try {
+					if (stmt != null)
+						database.releaseStatement(conn, stmt);
+				}
+				finally {
+					if (txConn == null)
+						try {
+							conn.rollback();
+							conn.setAutoCommit(true);
+						}
+						finally {
+							database.closeConnection(conn);
+						}
+				}
+			}
+			catch(SQLException sqle) {
+				x.addSuppressed(sqle);
+			}
+			throw x;
+		}
+	}
+
+	/**
+	 * Return a publisher, which delivers the results as fast as its subscriber requests them. Rows are read from database cursor in chunks of fetch size,
+	 * on database async executor. The connection is released when all results have been delivered, or subscription is cancelled
+	 * @param <T> entity type
+	 * @param entityClass target entity class
+	 * @return results publisher
+	 */
+	public <T> ResultPublisher<T> publish(Class<? extends T> entityClass) {
+		return new ResultPublisher<T>(database, this, entityClass);
 	}
 
 	/**
@@ -60,22 +137,66 @@ public class SqlQuery {
 	 * @throws BindException when data binding fails
 	 */
 	public <T> List<T> list(Class<? extends T> entityClass) throws SQLException, BindException {
-		return database.runStatements((db, conn) -> {
-			String sql = getSqlStatement(entityClass);
-			logger.accept(sql);
-			try(PreparedStatement stmt = conn.prepareStatement(sql)) {
-				database.bindWhereParameters(stmt, 0, parameters);
-				try(ResultSet rs = stmt.executeQuery()) {
-					ArrayList<T> list = new ArrayList<>();
-					FieldProperties[] fields = getFieldMappers(rs, database.dialect.getProperties(entityClass));
-					while(rs.next())
-						list.add(buildEntity(entityClass, rs, fields));
-					if (!list.isEmpty())
-						attachReferences(fields, () -> list.stream());
-					return list;
-				}
+		OperationMetrics metrics = new OperationMetrics(Operation.QUERY, entityClass);
+		return database.runQuery(metrics, (db, conn) -> list(entityClass, conn, metrics, getSqlStatement(entityClass), parameters));
+	}
+
+	private <T> List<T> list(Class<? extends T> entityClass, Connection conn, OperationMetrics metrics, String sql, Object[] parameters) throws SQLException, BindException {
+		logger.accept(sql);
+		metrics.startPhase();
+		PreparedStatement stmt = database.prepareStatement(conn, sql, null);
+		try {
+			database.bindWhereParameters(stmt, 0, parameters);
+			metrics.endPrepare();
+			try(ResultSet rs = stmt.executeQuery()) {
+				metrics.endExecute();
+				ArrayList<T> list = new ArrayList<>();
+				EntityProperties props = database.dialect.getProperties(entityClass);
+				FieldProperties[] fields = getFieldMappers(rs, props, getSqlSelect(props));
+				while(rs.next())
+					list.add(buildEntity(props, rs, fields));
+				metrics.endMap();
+				metrics.rowCount += list.size();
+				if (!list.isEmpty())
+					attachReferences(fields, () -> list.stream(), conn, metrics);
+				return list;
 			}
-		});
+		}
+		finally {
+			database.releaseStatement(conn, stmt);
+		}
+	}
+
+	/**
+	 * Async variant of list. Async operations do not join the transaction of calling thread
+	 * @param <T> entity type
+	 * @param entityClass target entity class
+	 * @return future of entities list
+	 */
+	public <T> CompletableFuture<List<T>> listAsync(Class<? extends T> entityClass) {
+		return database.async(() -> list(entityClass));
+	}
+
+	/**
+	 * Async variant of fetch
+	 * @param <T> entity type
+	 * @param entityClass target entity class
+	 * @return future of entity; null, if no records were found
+	 */
+	public <T> CompletableFuture<T> fetchAsync(Class<? extends T> entityClass) {
+		return database.async(() -> fetch(entityClass));
+	}
+
+	/**
+	 * Async variant of page
+	 * @param <T> entity type
+	 * @param entityClass target entity class
+	 * @param pageSize maximum number of entities in page
+	 * @param continuationToken token from the previous page; null for the first page
+	 * @return future of page
+	 */
+	public <T> CompletableFuture<Page<T>> pageAsync(Class<? extends T> entityClass, int pageSize, String continuationToken) {
+		return database.async(() -> page(entityClass, pageSize, continuationToken));
 	}
 
 	/**
@@ -87,24 +208,99 @@ public class SqlQuery {
 	 * @throws BindException when data binding fails
 	 */
 	public <T> T fetch(Class<? extends T> entityClass) throws SQLException, BindException {
-		return database.runStatements((db, conn) -> {
+		OperationMetrics metrics = new OperationMetrics(Operation.QUERY, entityClass);
+		return database.runQuery(metrics, (db, conn) -> {
 			String sql = getSqlStatement(entityClass);
 			logger.accept(sql);
-			try(PreparedStatement stmt = conn.prepareStatement(sql)) {
+			metrics.startPhase();
+			PreparedStatement stmt = database.prepareStatement(conn, sql, null);
+			try {
 				database.bindWhereParameters(stmt, 0, parameters);
+				metrics.endPrepare();
 				try(ResultSet rs = stmt.executeQuery()) {
+					metrics.endExecute();
 					if (!rs.next())
 						return null;
-					FieldProperties[] fields = getFieldMappers(rs, database.dialect.getProperties(entityClass));
-					T entity = buildEntity(entityClass, rs, getFieldMappers(rs, database.dialect.getProperties(entityClass)));
+					EntityProperties props = database.dialect.getProperties(entityClass);
+					FieldProperties[] fields = getFieldMappers(rs, props, getSqlSelect(props));
+					T entity = buildEntity(props, rs, fields);
+					metrics.endMap();
+					metrics.rowCount++;
 					if (entity != null)
-						attachReferences(fields, () -> Stream.of(entity));
+						attachReferences(fields, () -> Stream.of(entity), conn, metrics);
 					return entity;
 				}
 			}
+			finally {
+				database.releaseStatement(conn, stmt);
+			}
 		});
 	}
 
+	/**
+	 * Return a single page of results, using keyset (seek) pagination. Unlike OFFSET, the cost of fetching a page does not depend on page depth,
+	 * when keyset columns are indexed. Keyset columns (see method keyset) determine the order of results; ORDER BY clause of this query is ignored.
+	 * Custom SQL (see Database.sql) is queried as a subquery, so that its own WHERE, ORDER BY and LIMIT clauses remain intact
+	 * @param <T> entity type
+	 * @param entityClass target entity class
+	 * @param pageSize maximum number of entities in page
+	 * @param continuationToken token from the previous page (see Page.nextToken); null for the first page
+	 * @return page of entities
+	 * @throws SQLException when an SQL specific error occurs
+	 * @throws BindException when data binding fails or continuation token is invalid
+	 */
+	public <T> Page<T> page(Class<? extends T> entityClass, int pageSize, String continuationToken) throws SQLException, BindException {
+		if (pageSize < 1)
+			throw new IllegalArgumentException("Page size must be positive");
+		if (keysetColumns == null)
+			throw new BindException("Missing keyset columns, see method keyset");
+		EntityProperties props = database.dialect.getProperties(entityClass);
+		Keyset keyset = new Keyset(props, keysetColumns);
+		String where = whereExpression;
+		Object[] params = parameters;
+		if (continuationToken != null) {
+			where = (where == null ? "" : "(" + where + ") AND ") + keyset.getSqlSeek();
+			Object[] seekParams = keyset.getSeekParameters(keyset.decode(continuationToken));
+			params = (params == null ? seekParams : Stream.concat(Stream.of(params), Stream.of(seekParams)).toArray());
+		}
+		String sql = getSqlSelect(props);
+		if (this.sql != null)
+			sql = "SELECT * FROM (" + sql + ") keyset_page";
+		if (where != null)
+			sql += " WHERE " + where;
+		if (groupBy != null)
+			sql += " GROUP BY " + groupBy;
+		String sqlPage = database.dialect.getSqlForLimit(sql + " ORDER BY " + keyset.getOrderBy(), pageSize + 1);//one extra row reveals, whether there is a next page
+		Object[] pageParams = params;
+		OperationMetrics metrics = new OperationMetrics(Operation.QUERY, entityClass);
+		List<T> list = database.runQuery(metrics, (db, conn) -> list(entityClass, conn, metrics, sqlPage, pageParams));
+		if (list.size() <= pageSize)
+			return new Page<>(list, null);
+		list.remove(pageSize);
+		return new Page<>(list, keyset.encode(list.get(pageSize - 1)));
+	}
+
+	/**
+	 * Set keyset columns for keyset pagination (see method page). The columns must be non-null and together identify a record uniquely,
+	 * so the last column is typically the @Id column
+	 * @param columns columns list in ORDER BY format, for example "created DESC, id DESC"
+	 * @return SqlQuery object
+	 */
+	public SqlQuery keyset(String columns) {
+		this.keysetColumns = columns;
+		return this;
+	}
+
+	/**
+	 * Set the number of rows fetched from database cursor at a time, when streaming the results. Without this, database default fetch size is used
+	 * @param rows number of rows
+	 * @return SqlQuery object
+	 */
+	public SqlQuery fetchSize(int rows) {
+		this.fetchSize = rows;
+		return this;
+	}
+
 	/**
 	 * Add an SQL ORDER BY clause to select query
 	 * @param columns columns list for ORDER BY, for example "age DESC, name"
@@ -125,10 +321,41 @@ public class SqlQuery {
 		return this;
 	}
 
+	private String getSqlSelect(EntityProperties props) {
+		if (sql != null)
+			return sql;
+		if (selectColumns == null && sourceClass == null)
+			return props.sqlSelect;
+		String tableName = (sourceClass == null ? props.tableName : database.dialect.getProperties(sourceClass).tableName);
+		Collection<String> columns = (selectColumns == null ?
+				props.fields.stream().map(field -> field.columnName).collect(toList()) :
+				Stream.of(selectColumns.split(",")).map(String::trim).collect(toList()));
+		return database.dialect.getSqlForSelect(tableName, columns);
+	}
+
+	/**
+	 * Load only the given columns. Fields without a column in the result are left uninitialized
+	 * @param columns comma-separated column list, for example "id, name"
+	 * @return SqlQuery object
+	 */
+	public SqlQuery select(String columns) {
+		this.selectColumns = columns;
+		return this;
+	}
+
+	/**
+	 * Read from the table of given entity class. This allows mapping the results into a lightweight DTO class,
+	 * which declares a subset of entity fields: only the columns of DTO fields are loaded
+	 * @param entityClass entity class, which indirectly refers to a database table
+	 * @return SqlQuery object
+	 */
+	public SqlQuery from(Class<?> entityClass) {
+		this.sourceClass = entityClass;
+		return this;
+	}
+
 	private String getSqlStatement(Class<?> entityClass) {
-		EntityProperties props = database.dialect.getProperties(entityClass);
-		if (sql == null)
-			sql = props.sqlSelect;
+		String sql = getSqlSelect(database.dialect.getProperties(entityClass));
 		if (whereExpression != null)
 			sql += " WHERE " + whereExpression;
 		if (orderBy != null)
@@ -138,58 +365,117 @@ public class SqlQuery {
 		return sql;
 	}
 
-	private FieldProperties[] getFieldMappers(ResultSet rs, EntityProperties props) throws SQLException {
+	/**
+	 * Map resultset columns to entity fields. Since column layout depends on SELECT statement only (not on WHERE and other clauses),
+	 * the mapping is cached per SELECT statement and re-validated against column count only
+	 * @param rs resultset
+	 * @param props entity properties
+	 * @param sqlSelect SELECT statement without WHERE and other clauses
+	 * @return entity field for each column; null, if the column has no matching field
+	 * @throws SQLException when an SQL specific error occurs
+	 */
+	private FieldProperties[] getFieldMappers(ResultSet rs, EntityProperties props, String sqlSelect) throws SQLException {
 		ResultSetMetaData rsmd = rs.getMetaData();
 		int count = rsmd.getColumnCount();
-		FieldProperties[] fields = new FieldProperties[count];
+		FieldProperties[] fields = props.rowMappers.get(sqlSelect);
+		if (fields != null && fields.length == count)
+			return fields;
+		fields = new FieldProperties[count];
 		for(int i = 0; i < count; i++)
 			fields[i] = props.mapColumnToField.get(rsmd.getColumnName(i + 1));
+		if (props.rowMappers.size() < MAX_CACHED_ROW_MAPPERS)
+			props.rowMappers.put(sqlSelect, fields);
 		return fields;
 	}
 
-	private <T> T buildEntity(Class<? extends T> entityClass, ResultSet rs, FieldProperties[] fields) throws BindException {
-		T entity = null;
-		try {
-			entity = (T) entityClass.newInstance();
-		}
-		catch(InstantiationException | IllegalAccessException e) {
-			throw new BindException("Unable to invoke " + entityClass.getSimpleName() + "()", e);
-		}
+	@SuppressWarnings("unchecked")
+	<T> T buildEntity(EntityProperties props, ResultSet rs, FieldProperties[] fields) throws BindException {
+		T entity = (T) props.newInstance();
 		for(int i = 0; i < fields.length; i++)
 			if (fields[i] != null)
 				try {
-					fields[i].field.set(entity, fields[i].loadBinder.convert(rs, i + 1));
+					if (fields[i].primitiveLoader != null)
+						fields[i].primitiveLoader.load(rs, i + 1, entity);
+					else fields[i].setFieldValue(entity, fields[i].loadBinder.convert(rs, i + 1));
 				} catch (Exception e) {
 					throw new BindException("Unable to bind result from " + fields[i].columnName + " to entity field " + fields[i].field.getName(), e);
 				}
-		return entity;
+		return database.track(props, entity);
 	}
 
-	private void attachReferences(FieldProperties[] fields, Supplier<Stream<?>> streamSupplier) throws SQLException, BindException {
+	/**
+	 * Replace referenced entities (which contain id only) with entities loaded from database. References are resolved level by level,
+	 * up to reference depth. On each level, the keys of all fields referencing the same class are loaded together
+	 */
+	private void attachReferences(FieldProperties[] fields, Supplier<Stream<?>> streamSupplier, Connection conn, OperationMetrics metrics) throws SQLException, BindException {
 		if (!initReferences)
 			return;
-		for(FieldProperties fprop : fields) {
-			if (fprop.foreignField == null)
+		List<FieldProperties> refFields = Stream.of(fields).filter(f -> f != null && f.foreignField != null).collect(toList());
+		List<?> entities = streamSupplier.get().collect(toList());
+		Map<Class<?>, Map<Object, Object>> loaded = new HashMap<>();//already loaded entities by class and id; prevents loading the same entity twice in cyclic references
+		for(int level = 0; level < referenceDepth && !refFields.isEmpty() && !entities.isEmpty(); level++) {
+			List<Object> levelEntities = new ArrayList<>();
+			Map<Class<?>, List<FieldProperties>> fieldsByTarget = refFields.stream().collect(groupingBy(f -> f.fieldType, LinkedHashMap::new, toList()));
+			for(Map.Entry<Class<?>, List<FieldProperties>> entry : fieldsByTarget.entrySet()) {
+				Class<?> tgtClass = entry.getKey();// referenced class
+				FieldProperties foreignIdFld = database.dialect.getProperties(tgtClass).idField;// id field of referenced class
+				Map<Object, Object> refmap = loaded.computeIfAbsent(tgtClass, c -> new HashMap<>());
+				Set<Object> refkeys = new LinkedHashSet<>();//keys, which have not been loaded yet
+				for(FieldProperties fprop : entry.getValue())
+					entities.stream().
+						filter(e -> fprop.field.getDeclaringClass().isInstance(e)).
+						map(e -> fprop.getFieldValue(e)).
+						filter(fentity -> fentity != null).
+						map(fentity -> foreignIdFld.getFieldValue(fentity)).
+						filter(key -> key != null && !refmap.containsKey(key)).
+						forEach(refkeys::add);
+				for(Object target : loadReferences(tgtClass, refkeys, conn, metrics)) {
+					refmap.put(foreignIdFld.getFieldValue(target), target);
+					levelEntities.add(target);
+				}
+				for(FieldProperties fprop : entry.getValue())
+					entities.stream().
+						filter(e -> fprop.field.getDeclaringClass().isInstance(e) && fprop.getFieldValue(e) != null).
+						forEach(e -> fprop.setFieldValue(e, refmap.get(foreignIdFld.getFieldValue(fprop.getFieldValue(e)))));//replace foreign entity in each reference
+			}
+			entities = levelEntities;
+			refFields = entities.stream().map(Object::getClass).distinct().
+					flatMap(c -> database.dialect.getProperties(c).fields.stream()).
+					filter(f -> f.foreignField != null).
+					collect(toList());
+		}
+	}
+
+	/**
+	 * Load referenced entities by keys. Keys are bound as a single array parameter (when dialect supports it), in chunks of MAX_REFERENCE_KEYS keys
+	 */
+	private List<Object> loadReferences(Class<?> tgtClass, Set<Object> refkeys, Connection conn, OperationMetrics metrics) throws SQLException, BindException {
+		List<Object> targets = new ArrayList<>();
+		if (refkeys.isEmpty())
+			return targets;
+		EntityProperties targetProps = database.dialect.getProperties(tgtClass);
+		FieldProperties foreignIdFld = targetProps.idField;
+		String selColumns = (mapReferencedColumns == null ? null : mapReferencedColumns.get(tgtClass));
+		SqlQuery q = new SqlQuery(database, null, logger);
+		q.sql = "SELECT " + foreignIdFld.columnName + "," + (selColumns == null ? referencedColumns : selColumns) + " FROM " + targetProps.tableName;
+		String arrayType = database.dialect.getArrayTypeName(foreignIdFld.fieldType);
+		List<Object> keys = new ArrayList<>(refkeys);
+		for(int from = 0; from < keys.size(); from += MAX_REFERENCE_KEYS) {
+			List<Object> chunk = keys.subList(from, Math.min(keys.size(), from + MAX_REFERENCE_KEYS));
+			if (arrayType == null) {
+				String sql = q.sql + " WHERE " + foreignIdFld.columnName + " IN (" + chunk.stream().map(refkey -> "?").collect(joining(",")) + ")";
+				targets.addAll(q.list(tgtClass, conn, metrics, sql, chunk.toArray()));
 				continue;
-			Class<?> tgtClass = fprop.fieldType;// referenced class
-			EntityProperties targetProps = database.dialect.getProperties(tgtClass);
-			FieldProperties foreignIdFld = targetProps.idField;// id field of referenced class
-			Set<Object> refkeys = streamSupplier.get().
-					map(rec -> fprop.getFieldValue(rec)).
-					filter(fentity -> fentity != null).
-					map(fentity -> foreignIdFld.getFieldValue(fentity)).
-					filter(key -> key != null).
-					collect(toSet());//list of foreign keys
-			String selColumns = (mapReferencedColumns == null ? null : mapReferencedColumns.get(tgtClass));
-			SqlQuery q = new SqlQuery(database, sql, logger);
-			q.sql = "SELECT " + targetProps.idField.columnName + "," + (selColumns == null ? referencedColumns : selColumns) + " FROM " + targetProps.tableName;
-			q.whereExpression = foreignIdFld.columnName + " IN (" + refkeys.stream().map(refkey -> "?").collect(joining(",")) + ")";
-			q.parameters = refkeys.toArray(new Object[refkeys.size()]);
-			Map<Object, Object> refmap = q.stream(tgtClass).collect(toMap(e -> foreignIdFld.getFieldValue(e), e -> e));//map of foreign entities by key
-			streamSupplier.get().
-				filter(e -> fprop.getFieldValue(e) != null).
-				forEach(e -> fprop.setFieldValue(e, refmap.get(foreignIdFld.getFieldValue(fprop.getFieldValue(e)))));//replace foreign entity in each reference
+			}
+			Array array = conn.createArrayOf(arrayType, chunk.toArray());
+			try {
+				targets.addAll(q.list(tgtClass, conn, metrics, q.sql + " WHERE " + database.dialect.getSqlForAny(foreignIdFld.columnName), new Object[] {array}));
+			}
+			finally {
+				array.free();
+			}
 		}
+		return targets;
 	}
 
 	/**
@@ -204,6 +490,18 @@ public class SqlQuery {
 		return this;
 	}
 
+	/**
+	 * Set the number of reference levels to resolve. For example, with depth 2, Employee.department and Department.manager are both initialized.
+	 * Each level takes one query per referenced class (per 10000 keys). Nested references are resolved only when their foreign key columns are fetched (for example with "*")
+	 *
+	 * @param levels number of levels; default is 1
+	 * @return the same query object
+	 */
+	public SqlQuery referenceDepth(int levels) {
+		referenceDepth = levels;
+		return this;
+	}
+
 	/**
 	 * Set the columns to fetch for a specific referenced entity.
 	 * This method can be used when an entity is referencing multiple other entities and a different set of columns must be fetched for each entity
@@ -0,0 +1,88 @@
+package eu.miltema.slimorm;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LRU cache of prepared statements of a single connection.
+ * A cached statement is checked out while in use, so that nested statements with the same SQL (for example when loading references) get separate statements.
+ * Like the connection itself, the cache must be used by one thread at a time
+ */
+class StatementCache {
+
+	private Connection connection;
+	private int capacity;
+	private LongAdder hits, misses;
+	private LinkedHashMap<String, PreparedStatement> idleStatements = new LinkedHashMap<>(16, .75f, true);//access-ordered
+	private IdentityHashMap<PreparedStatement, String> usedStatements = new IdentityHashMap<>();//statement -> cache key
+
+	StatementCache(Connection connection, int capacity, LongAdder hits, LongAdder misses) {
+		this.connection = connection;
+		this.capacity = capacity;
+		this.hits = hits;
+		this.misses = misses;
+	}
+
+	/**
+	 * Get a cached statement or prepare a new one
+	 * @param sql SQL statement
+	 * @param keyColumns names of columns of generated keys; null, if generated keys are not returned
+	 * @return prepared statement
+	 * @throws SQLException when statement preparation fails
+	 */
+	PreparedStatement prepare(String sql, String[] keyColumns) throws SQLException {
+		String key = (keyColumns == null ? sql : sql + '\0' + String.join(",", keyColumns));
+		PreparedStatement stmt = idleStatements.remove(key);
+		if (stmt != null && !stmt.isClosed())
+			hits.increment();
+		else {
+			misses.increment();
+			stmt = (keyColumns == null ? connection.prepareStatement(sql) : connection.prepareStatement(sql, keyColumns));
+		}
+		usedStatements.put(stmt, key);
+		return stmt;
+	}
+
+	/**
+	 * Return the statement into cache. When the cache is full, least recently used statement is closed
+	 * @param stmt statement, which was prepared via this cache
+	 * @throws SQLException when statement cleanup fails
+	 */
+	void release(PreparedStatement stmt) throws SQLException {
+		String key = usedStatements.remove(stmt);
+		if (key == null || stmt.isClosed()) {
+			stmt.close();
+			return;
+		}
+		stmt.clearParameters();
+		stmt.setFetchSize(0);
+		PreparedStatement previous = idleStatements.put(key, stmt);
+		if (previous != null)
+			previous.close();
+		if (idleStatements.size() > capacity) {
+			Iterator<PreparedStatement> eldest = idleStatements.values().iterator();
+			PreparedStatement evicted = eldest.next();
+			eldest.remove();
+			evicted.close();
+		}
+	}
+
+	/**
+	 * Close all cached statements
+	 * @throws SQLException when closing a statement fails
+	 */
+	void close() throws SQLException {
+		SQLException failure = null;
+		for(PreparedStatement stmt : idleStatements.values())
+			try {
+				stmt.close();
+			}
+			catch(SQLException x) {
+				failure = x;
+			}
+		idleStatements.clear();
+		if (failure != null)
+			throw failure;
+	}
+}
@@ -0,0 +1,134 @@
+package eu.miltema.slimorm;
+
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Collects inserts, updates and deletes, and writes them in a single transaction on flush. Pending writes are grouped per entity class
+ * and each group is written with bulk statements, so that a complex write takes a handful of round trips.
+ * Classes are ordered by @ManyToOne dependencies: referenced classes are inserted before referencing classes and deleted after them.
+ * Cyclic dependencies (including self-references) are written in registration order, therefore the referenced entities of a cycle must already have ids.
+ * Unit of work is not thread-safe
+ */
+public class UnitOfWork {
+
+	private Database database;
+	private Map<Class<?>, List<Object>> inserts = new LinkedHashMap<>();
+	private Map<Class<?>, List<Object>> updates = new LinkedHashMap<>();
+	private Map<Class<?>, Set<Object>> deletes = new LinkedHashMap<>();//ids by entity class
+	private Set<Object> pending = Collections.newSetFromMap(new IdentityHashMap<>());//entities pending insert or update
+
+	UnitOfWork(Database database) {
+		this.database = database;
+	}
+
+	/**
+	 * Register an entity for insert. The entity is written with its field values at flush time
+	 * @param entity entity to insert
+	 * @return this unit of work
+	 */
+	public UnitOfWork insert(Object entity) {
+		if (pending.add(entity))
+			inserts.computeIfAbsent(entity.getClass(), c -> new ArrayList<>()).add(entity);
+		return this;
+	}
+
+	/**
+	 * Register an existing entity for update. Registering the same entity repeatedly, or after insert, has no effect:
+	 * the entity is written with its field values at flush time
+	 * @param entity entity to update
+	 * @return this unit of work
+	 */
+	public UnitOfWork update(Object entity) {
+		if (pending.add(entity))
+			updates.computeIfAbsent(entity.getClass(), c -> new ArrayList<>()).add(entity);
+		return this;
+	}
+
+	/**
+	 * Register a record for delete
+	 * @param entityClass entity class, which indirectly refers to a database table
+	 * @param id entity id
+	 * @return this unit of work
+	 */
+	public UnitOfWork delete(Class<?> entityClass, Object id) {
+		deletes.computeIfAbsent(entityClass, c -> new LinkedHashSet<>()).add(id);
+		return this;
+	}
+
+	/**
+	 * @return true, if there are no pending writes
+	 */
+	public boolean isEmpty() {
+		return inserts.isEmpty() && updates.isEmpty() && deletes.isEmpty();
+	}
+
+	/**
+	 * Write pending inserts, then updates, then deletes. When invoked in transaction context, the writes join that transaction; otherwise a new transaction is used.
+	 * When an updated or deleted record does not exist, the flush fails. After a failed flush, pending writes are retained
+	 * @throws SQLException when connection allocation, release, commit or rollback fails
+	 * @throws TransactionException when a write fails; the cause is RecordNotFoundException, when an updated or deleted record was not found
+	 */
+	public void flush() throws SQLException, TransactionException {
+		if (isEmpty())
+			return;
+		if (!database.inTransaction())
+			database.transaction((db, conn) -> {
+				write();
+				return null;
+			});
+		else {
+			try {
+				write();
+			}
+			catch(SQLException x) {
+				throw x;
+			}
+			catch(Exception x) {
+				throw new TransactionException("Flush failed", x);
+			}
+		}
+		inserts.clear();
+		updates.clear();
+		deletes.clear();
+		pending.clear();
+	}
+
+	private void write() throws Exception {
+		Set<Class<?>> classes = new LinkedHashSet<>();
+		classes.addAll(inserts.keySet());
+		classes.addAll(updates.keySet());
+		classes.addAll(deletes.keySet());
+		List<Class<?>> order = sortByDependencies(classes);
+		for(Class<?> entityClass : order)
+			if (inserts.containsKey(entityClass))
+				database.bulkInsert(inserts.get(entityClass));
+		for(Class<?> entityClass : order)
+			if (updates.containsKey(entityClass) && !database.bulkUpdate(updates.get(entityClass)).isEmpty())
+				throw new RecordNotFoundException();
+		Collections.reverse(order);
+		for(Class<?> entityClass : order)
+			if (deletes.containsKey(entityClass) && database.deleteByIds(entityClass, deletes.get(entityClass)) != deletes.get(entityClass).size())
+				throw new RecordNotFoundException();
+	}
+
+	/**
+	 * @return classes ordered so that referenced classes precede the classes referencing them
+	 */
+	private List<Class<?>> sortByDependencies(Set<Class<?>> classes) {
+		List<Class<?>> order = new ArrayList<>();
+		Set<Class<?>> visited = new HashSet<>();
+		for(Class<?> entityClass : classes)
+			visit(entityClass, classes, visited, order);
+		return order;
+	}
+
+	private void visit(Class<?> entityClass, Set<Class<?>> classes, Set<Class<?>> visited, List<Class<?>> order) {
+		if (!visited.add(entityClass))
+			return;//already ordered or being ordered (cyclic dependency)
+		for(FieldProperties field : database.dialect.getProperties(entityClass).fields)
+			if (field.foreignField != null && classes.contains(field.fieldType))
+				visit(field.fieldType, classes, visited, order);
+		order.add(entityClass);
+	}
+}
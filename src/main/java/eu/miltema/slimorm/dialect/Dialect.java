@@ -1,6 +1,9 @@
 package eu.miltema.slimorm.dialect;
 
-import java.util.Collection;
+import java.sql.*;
+import java.util.*;
+
+import com.google.gson.Gson;
 
 import eu.miltema.slimorm.*;
 
@@ -18,6 +21,14 @@ public interface Dialect {
 	 */
 	SaveBinder getSaveBinder(Class<?> fieldType);
 
+	/**
+	 * @param field primitive entity field
+	 * @return loader, which reads column value directly into the primitive field without boxing; null, if field type is not supported
+	 */
+	default FieldLoader getPrimitiveLoader(FieldProperties field) {
+		return null;
+	}
+
 	/**
 	 * @param javaName entity class name
 	 * @return database table name for this Java class
@@ -51,10 +62,102 @@ public interface Dialect {
 	String getSqlForSelect(String tableName, Collection<String> columns);
 	String getSqlForWhere(String tableName, String idColumn);
 
+	/**
+	 * @param fieldType Java type of array elements
+	 * @return SQL type name for Connection.createArrayOf; null, if arrays of this type are not supported and IN-list is used instead
+	 */
+	default String getArrayTypeName(Class<?> fieldType) {
+		return null;
+	}
+
+	/**
+	 * @param columnName column name
+	 * @return WHERE condition, which matches any element of an array parameter, for example "id = ANY(?)"; only used when getArrayTypeName supports the type
+	 */
+	default String getSqlForAny(String columnName) {
+		return columnName + " = ANY(?)";
+	}
+
+	/**
+	 * @param sql SELECT statement
+	 * @param limit maximum number of rows to return
+	 * @return SELECT statement, which returns up to limit rows, for example "SELECT * FROM mytable LIMIT 10"
+	 */
+	default String getSqlForLimit(String sql, int limit) {
+		return sql + " LIMIT " + limit;
+	}
+
+	/**
+	 * @param tableName table name
+	 * @param columnName column name
+	 * @return SELECT statement, which returns minimum and maximum value of the column, for example "SELECT MIN(id), MAX(id) FROM mytable"
+	 */
+	default String getSqlForRange(String tableName, String columnName) {
+		return "SELECT MIN(" + columnName + "), MAX(" + columnName + ") FROM " + tableName;
+	}
+
+	/**
+	 * This method provides conflict clause, which is appended to INSERT-statement, to turn it into upsert
+	 * @param tableName table name
+	 * @param conflictColumns names of columns, which identify an existing record
+	 * @param updateColumns names of columns to update in existing record
+	 * @return for example " ON CONFLICT (id) DO UPDATE SET name=EXCLUDED.name"; null, if upsert is not supported
+	 */
+	default String getSqlForUpsert(String tableName, Collection<String> conflictColumns, Collection<String> updateColumns) {
+		return null;
+	}
+
+	/**
+	 * @param tableName table name
+	 * @param columns names of columns to load
+	 * @return bulk load statement, for example "COPY mytable(col1,col2) FROM STDIN"; null, if bulk load is not supported
+	 */
+	default String getSqlForCopy(String tableName, Collection<String> columns) {
+		return null;
+	}
+
+	/**
+	 * Load entities into database table via driver-specific bulk load protocol
+	 * @param connection database connection
+	 * @param sql bulk load statement (see getSqlForCopy)
+	 * @param fields entity fields, which are loaded into table columns
+	 * @param entities entities to load
+	 * @return number of rows loaded
+	 * @throws SQLException when an SQL specific error occurs
+	 * @throws BindException when data binding fails or bulk load is not supported
+	 */
+	default long copyIn(Connection connection, String sql, Collection<FieldProperties> fields, Iterator<?> entities) throws SQLException, BindException {
+		throw new BindException("Bulk load is not supported by " + getClass().getSimpleName());
+	}
+
 	EntityProperties getProperties(Class<?> entityClass);
 
 	LoadBinder getJSonLoadBinder(Class<?> fieldType);
 	SaveBinder getJSonSaveBinder(Class<?> fieldType);
+
+	/**
+	 * @param field JSON field
+	 * @return load binder for a JSON field; by default, load binder for field type
+	 */
+	default LoadBinder getJSonLoadBinder(FieldProperties field) {
+		return getJSonLoadBinder(field.fieldType);
+	}
+
+	/**
+	 * @param field JSON field
+	 * @return save binder for a JSON field; by default, save binder for field type
+	 */
+	default SaveBinder getJSonSaveBinder(FieldProperties field) {
+		return getJSonSaveBinder(field.fieldType);
+	}
+
+	/**
+	 * @return Gson instance, which serializes JSON fields; by default, a new instance with default configuration
+	 */
+	default Gson getGson() {
+		return new Gson();
+	}
+
 	SaveBinder getEnumSaveBinder(Class<?> fieldType);
 	LoadBinder getEnumLoadBinder(Class<?> fieldType);
 }
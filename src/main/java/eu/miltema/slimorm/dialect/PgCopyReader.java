@@ -0,0 +1,114 @@
+package eu.miltema.slimorm.dialect;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.math.BigDecimal;
+import java.sql.*;
+import java.time.OffsetDateTime;
+import java.util.*;
+
+import eu.miltema.slimorm.*;
+
+/**
+ * Produces PostgreSQL COPY text format from entities. Field values are converted by the same save binders, which are used for INSERT statements:
+ * binders bind values into a recording statement and the recorded values are then encoded as COPY text
+ */
+class PgCopyReader extends Reader {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private Iterator<?> entities;
+	private FieldProperties[] fields;
+	private Object[] values;
+	private PreparedStatement recorder;
+	private StringBuilder buffer = new StringBuilder(BUFFER_SIZE + 1024);
+	private int position;
+
+	PgCopyReader(Collection<FieldProperties> fields, Iterator<?> entities) {
+		this.entities = entities;
+		this.fields = fields.toArray(new FieldProperties[fields.size()]);
+		this.values = new Object[this.fields.length];
+		this.recorder = (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[] {PreparedStatement.class}, this::record);
+	}
+
+	/**
+	 * Records the value, which a save binder is binding into statement
+	 */
+	private Object record(Object proxy, Method method, Object[] args) {
+		String name = method.getName();
+		if (!name.startsWith("set") || args == null || args.length < 2 || !(args[0] instanceof Integer))
+			throw new UnsupportedOperationException("COPY does not support binding via " + name);
+		Object value = (name.equals("setNull") ? null : args[1]);
+		if (value instanceof Timestamp && args.length > 2 && args[2] instanceof Calendar)//timestamp with time zone
+			value = OffsetDateTime.ofInstant(((Timestamp) value).toInstant(), ((Calendar) args[2]).getTimeZone().toZoneId());
+		values[(Integer) args[0] - 1] = value;
+		return null;
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (position >= buffer.length()) {
+			buffer.setLength(0);
+			position = 0;
+			while(buffer.length() < BUFFER_SIZE && entities.hasNext())
+				encodeRow(entities.next());
+			if (buffer.length() == 0)
+				return -1;
+		}
+		int count = Math.min(len, buffer.length() - position);
+		buffer.getChars(position, position + count, cbuf, off);
+		position += count;
+		return count;
+	}
+
+	private void encodeRow(Object entity) throws IOException {
+		for(int i = 0; i < fields.length; i++)
+			try {
+				values[i] = null;
+				fields[i].saveBinder.bind(recorder, i + 1, fields[i].getFieldValue(entity));
+			}
+			catch(Exception x) {
+				throw new IOException(new BindException("Unable to bind field " + fields[i].field.getName(), x));
+			}
+		for(int i = 0; i < values.length; i++) {
+			if (i > 0)
+				buffer.append('\t');
+			encodeValue(values[i]);
+		}
+		buffer.append('\n');
+	}
+
+	private void encodeValue(Object value) {
+		if (value == null)
+			buffer.append("\\N");
+		else if (value instanceof Boolean)
+			buffer.append((Boolean) value ? 't' : 'f');
+		else if (value instanceof BigDecimal)
+			buffer.append(((BigDecimal) value).toPlainString());
+		else if (value instanceof Number)
+			buffer.append(value);
+		else if (value instanceof byte[]) {
+			buffer.append("\\\\x");//bytea hex format, with backslash escaped for COPY
+			for(byte b : (byte[]) value)
+				buffer.append(HEX[(b >> 4) & 15]).append(HEX[b & 15]);
+		}
+		else {
+			String s = value.toString();//also covers PGobject, which returns its value
+			for(int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				switch(c) {
+					case '\\': buffer.append("\\\\"); break;
+					case '\t': buffer.append("\\t"); break;
+					case '\n': buffer.append("\\n"); break;
+					case '\r': buffer.append("\\r"); break;
+					default: buffer.append(c);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+	}
+}
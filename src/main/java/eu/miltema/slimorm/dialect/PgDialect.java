@@ -3,18 +3,27 @@ package eu.miltema.slimorm.dialect;
 import static java.sql.Types.*;
 import static java.util.stream.Collectors.joining;
 
+import java.io.*;
+import java.lang.invoke.*;
+import java.lang.reflect.InvocationTargetException;
 import java.math.BigDecimal;
 import java.sql.*;
 import java.time.*;
 import java.util.*;
-import com.google.gson.Gson;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.*;
+import com.google.gson.reflect.TypeToken;
 import eu.miltema.slimorm.*;
 
 public class PgDialect implements Dialect {
 
-	Map<Class<?>, EntityProperties> entityProps = new HashMap<>();
+	Map<Class<?>, EntityProperties> entityProps = new ConcurrentHashMap<>();//fully initialized properties only; read without locking
+	private Map<Class<?>, EntityProperties> pendingProps = new HashMap<>();//properties being initialized by the thread holding dialect lock
 	HashMap<Class<?>, SaveBinder> saveBinders = new HashMap<>();
 	HashMap<Class<?>, LoadBinder> loadBinders = new HashMap<>();
+	HashMap<Class<?>, String> arrayTypes = new HashMap<>();
+	protected Gson gson = new Gson();//shared by all JSON fields; subclasses may replace it with a customized instance before entities are initialized
 
 	public PgDialect() {
 		saveBinders.put(Byte.class, (stmt, i, param) -> {if (param == null) stmt.setNull(i, INTEGER); else stmt.setInt(i, ((Byte)param).intValue() & 255);});
@@ -41,20 +50,29 @@ public class PgDialect implements Dialect {
 		saveBinders.put(byte[].class, (stmt, i, param) -> stmt.setBytes(i, (byte[])param));
 		saveBinders.put(BigDecimal.class, (stmt, i, param) -> stmt.setBigDecimal(i, (BigDecimal)param));
 
-		loadBinders.put(Byte.class, (rs, i) -> nvl(new Byte((byte) rs.getInt(i)), rs));
-		loadBinders.put(byte.class, (rs, i) -> nvl(new Byte((byte) rs.getInt(i)), rs));
-		loadBinders.put(Short.class, (rs, i) -> nvl(new Short((short) rs.getInt(i)), rs));
-		loadBinders.put(short.class, (rs, i) -> nvl(new Short((short) rs.getInt(i)), rs));
-		loadBinders.put(Integer.class, (rs, i) -> nvl(new Integer(rs.getInt(i)), rs));
-		loadBinders.put(int.class, (rs, i) -> nvl(new Integer(rs.getInt(i)), rs));
-		loadBinders.put(Long.class, (rs, i) -> nvl(new Long(rs.getLong(i)), rs));
-		loadBinders.put(long.class, (rs, i) -> nvl(new Long(rs.getLong(i)), rs));
-		loadBinders.put(Float.class, (rs, i) -> nvl(new Float(rs.getFloat(i)), rs));
-		loadBinders.put(float.class, (rs, i) -> nvl(new Float(rs.getFloat(i)), rs));
-		loadBinders.put(Double.class, (rs, i) -> nvl(new Double(rs.getDouble(i)), rs));
-		loadBinders.put(double.class, (rs, i) -> nvl(new Double(rs.getDouble(i)), rs));
-		loadBinders.put(Boolean.class, (rs, i) -> nvl(new Boolean(rs.getBoolean(i)), rs));
-		loadBinders.put(boolean.class, (rs, i) -> nvl(new Boolean(rs.getBoolean(i)), rs));
+		arrayTypes.put(Short.class, "int2");
+		arrayTypes.put(short.class, "int2");
+		arrayTypes.put(Integer.class, "int4");
+		arrayTypes.put(int.class, "int4");
+		arrayTypes.put(Long.class, "int8");
+		arrayTypes.put(long.class, "int8");
+		arrayTypes.put(String.class, "varchar");
+		arrayTypes.put(BigDecimal.class, "numeric");
+
+		loadBinders.put(Byte.class, (rs, i) -> nvl(Byte.valueOf((byte) rs.getInt(i)), rs));
+		loadBinders.put(byte.class, (rs, i) -> nvl(Byte.valueOf((byte) rs.getInt(i)), rs));
+		loadBinders.put(Short.class, (rs, i) -> nvl(Short.valueOf((short) rs.getInt(i)), rs));
+		loadBinders.put(short.class, (rs, i) -> nvl(Short.valueOf((short) rs.getInt(i)), rs));
+		loadBinders.put(Integer.class, (rs, i) -> nvl(Integer.valueOf(rs.getInt(i)), rs));
+		loadBinders.put(int.class, (rs, i) -> nvl(Integer.valueOf(rs.getInt(i)), rs));
+		loadBinders.put(Long.class, (rs, i) -> nvl(Long.valueOf(rs.getLong(i)), rs));
+		loadBinders.put(long.class, (rs, i) -> nvl(Long.valueOf(rs.getLong(i)), rs));
+		loadBinders.put(Float.class, (rs, i) -> nvl(Float.valueOf(rs.getFloat(i)), rs));
+		loadBinders.put(float.class, (rs, i) -> nvl(Float.valueOf(rs.getFloat(i)), rs));
+		loadBinders.put(Double.class, (rs, i) -> nvl(Double.valueOf(rs.getDouble(i)), rs));
+		loadBinders.put(double.class, (rs, i) -> nvl(Double.valueOf(rs.getDouble(i)), rs));
+		loadBinders.put(Boolean.class, (rs, i) -> nvl(Boolean.valueOf(rs.getBoolean(i)), rs));
+		loadBinders.put(boolean.class, (rs, i) -> nvl(Boolean.valueOf(rs.getBoolean(i)), rs));
 		loadBinders.put(String.class, (rs, i) -> rs.getString(i));
 		loadBinders.put(Timestamp.class, (rs, i) -> rs.getTimestamp(i));
 		loadBinders.put(Instant.class, (rs, i) -> {Timestamp ts = rs.getTimestamp(i); return (ts == null ? null : ts.toInstant());});
@@ -88,6 +106,60 @@ public class PgDialect implements Dialect {
 		return saveBinders.get(fieldType);
 	}
 
+	@Override
+	public FieldLoader getPrimitiveLoader(FieldProperties field) {
+		Class<?> type = field.fieldType;
+		if (type == int.class)
+			return (rs, i, entity) -> field.setInt(entity, notNull(rs.getInt(i), rs, field));
+		else if (type == long.class)
+			return (rs, i, entity) -> field.setLong(entity, notNull(rs.getLong(i), rs, field));
+		else if (type == double.class)
+			return (rs, i, entity) -> field.setDouble(entity, notNull(rs.getDouble(i), rs, field));
+		else if (type == float.class)
+			return (rs, i, entity) -> field.setFloat(entity, notNull(rs.getFloat(i), rs, field));
+		else if (type == boolean.class)
+			return (rs, i, entity) -> field.setBoolean(entity, notNull(rs.getBoolean(i), rs, field));
+		else if (type == short.class)
+			return (rs, i, entity) -> field.setShort(entity, (short) notNull(rs.getInt(i), rs, field));
+		else if (type == byte.class)
+			return (rs, i, entity) -> field.setByte(entity, (byte) notNull(rs.getInt(i), rs, field));
+		return null;
+	}
+
+	/*
+	 * Primitive-specialized null checks: primitive field cannot hold NULL
+	 */
+
+	private int notNull(int value, ResultSet rs, FieldProperties field) throws SQLException, BindException {
+		checkNotNull(rs, field);
+		return value;
+	}
+
+	private long notNull(long value, ResultSet rs, FieldProperties field) throws SQLException, BindException {
+		checkNotNull(rs, field);
+		return value;
+	}
+
+	private double notNull(double value, ResultSet rs, FieldProperties field) throws SQLException, BindException {
+		checkNotNull(rs, field);
+		return value;
+	}
+
+	private float notNull(float value, ResultSet rs, FieldProperties field) throws SQLException, BindException {
+		checkNotNull(rs, field);
+		return value;
+	}
+
+	private boolean notNull(boolean value, ResultSet rs, FieldProperties field) throws SQLException, BindException {
+		checkNotNull(rs, field);
+		return value;
+	}
+
+	private void checkNotNull(ResultSet rs, FieldProperties field) throws SQLException, BindException {
+		if (rs.wasNull())
+			throw new BindException("NULL cannot be assigned to primitive field " + field.field.getName());
+	}
+
 	protected String toSnakeCase(String s) {
 		return s.replaceAll("([a-z]|[0-9])([A-Z]+)", "$1_$2").toLowerCase();
 	}
@@ -124,7 +196,7 @@ public class PgDialect implements Dialect {
 
 	@Override
 	public String getSqlForSelect(String tableName, Collection<String> columns) {
-		return "SELECT * FROM " + tableName;
+		return "SELECT " + columns.stream().collect(joining(",")) + " FROM " + tableName;
 	}
 
 	@Override
@@ -132,48 +204,198 @@ public class PgDialect implements Dialect {
 		return idColumn + "=?";
 	}
 
+	@Override
+	public String getArrayTypeName(Class<?> fieldType) {
+		return arrayTypes.get(fieldType);
+	}
+
+	@Override
+	public String getSqlForAny(String columnName) {
+		return columnName + " = ANY(?)";
+	}
+
+	@Override
+	public String getSqlForRange(String tableName, String columnName) {
+		return "SELECT MIN(" + columnName + "), MAX(" + columnName + ") FROM " + tableName;
+	}
+
+	@Override
+	public String getSqlForLimit(String sql, int limit) {
+		return sql + " LIMIT " + limit;
+	}
+
+	@Override
+	public String getSqlForUpsert(String tableName, Collection<String> conflictColumns, Collection<String> updateColumns) {
+		Collection<String> columns = (updateColumns.isEmpty() ? conflictColumns : updateColumns);//DO NOTHING would not return keys of existing records
+		return " ON CONFLICT (" + conflictColumns.stream().collect(joining(",")) + ") DO UPDATE SET " + columns.stream().map(column -> column + "=EXCLUDED." + column).collect(joining(","));
+	}
+
+	@Override
+	public String getSqlForCopy(String tableName, Collection<String> columns) {
+		return "COPY " + tableName + "(" + columns.stream().collect(joining(",")) + ") FROM STDIN";
+	}
+
+	@Override
+	public long copyIn(Connection connection, String sql, Collection<FieldProperties> fields, Iterator<?> entities) throws SQLException, BindException {
+		try {
+//			CopyManager copyManager = connection.unwrap(PGConnection.class).getCopyAPI();
+//			return copyManager.copyIn(sql, new PgCopyReader(fields, entities));
+			// Implement the above logic without the need of postgre dependencies
+			Class<?> pgConnectionClass = Class.forName("org.postgresql.PGConnection");
+			Object copyManager = pgConnectionClass.getMethod("getCopyAPI").invoke(connection.unwrap(pgConnectionClass));
+			return (Long) copyManager.getClass().getMethod("copyIn", String.class, Reader.class).invoke(copyManager, sql, new PgCopyReader(fields, entities));
+		}
+		catch(InvocationTargetException ite) {
+			Throwable x = ite.getCause();
+			if (x instanceof IOException && x.getCause() instanceof BindException)
+				throw (BindException) x.getCause();
+			else if (x instanceof SQLException)
+				throw (SQLException) x;
+			else throw new SQLException(x);
+		}
+		catch(ReflectiveOperationException x) {
+			throw new SQLException("COPY requires PostgreSQL JDBC driver", x);
+		}
+	}
+
 	@Override
 	public EntityProperties getProperties(Class<?> entityClass) {
 		EntityProperties props = entityProps.get(entityClass);
-		if (props == null) {
-			entityProps.put(entityClass, props = new EntityProperties(entityClass, this));
-			props.finishInitialization();
+		return (props != null ? props : initProperties(entityClass));
+	}
+
+	/**
+	 * Initialize entity properties under dialect lock. Entities referencing each other via @ManyToOne are initialized in the same (outermost) call:
+	 * during finishInitialization, partially initialized properties are visible to the initializing thread only, via pendingProps.
+	 * Other threads see the properties once all of them have been fully initialized.
+	 * @param entityClass entity class
+	 * @return entity properties
+	 */
+	private synchronized EntityProperties initProperties(Class<?> entityClass) {
+		EntityProperties props = entityProps.get(entityClass);
+		if (props == null && (props = pendingProps.get(entityClass)) == null) {
+			boolean isOutermost = pendingProps.isEmpty();
+			pendingProps.put(entityClass, props = new EntityProperties(entityClass, this));
+			try {
+				props.finishInitialization();
+				if (isOutermost)
+					entityProps.putAll(pendingProps);
+			}
+			finally {
+				if (isOutermost)
+					pendingProps.clear();
+			}
 		}
 		return props;
 	}
 
+	@Override
+	public Gson getGson() {
+		return gson;
+	}
+
 	@Override
 	public LoadBinder getJSonLoadBinder(Class<?> fieldType) {
+		return getJSonLoadBinder(gson.getAdapter(fieldType));
+	}
+
+	@Override
+	public LoadBinder getJSonLoadBinder(FieldProperties field) {
+		return getJSonLoadBinder(getJSonAdapter(field));
+	}
+
+	private LoadBinder getJSonLoadBinder(TypeAdapter<?> adapter) {
 		return (rs, i) -> {
 			String json = rs.getString(i);
-			return (json == null ? null : new Gson().fromJson(json, fieldType));
+			return (json == null ? null : adapter.fromJson(json));
 		};
 	}
 
 	@Override
 	public SaveBinder getJSonSaveBinder(Class<?> fieldType) {
+		@SuppressWarnings("unchecked")
+		TypeAdapter<Object> adapter = (TypeAdapter<Object>) gson.getAdapter(fieldType);
+		return getJSonSaveBinder(fieldType, false, adapter, "json");
+	}
+
+	@Override
+	public SaveBinder getJSonSaveBinder(FieldProperties field) {
+		boolean generic = !(field.field.getGenericType() instanceof Class);
+		return getJSonSaveBinder(field.fieldType, generic, getJSonAdapter(field), field.field.getAnnotation(JSon.class).jsonb() ? "jsonb" : "json");
+	}
+
+	/**
+	 * Declared-type adapter serializes values of a generic field type (for example any List for List&lt;Contract&gt;), since only the adapter knows the type arguments,
+	 * and values of exactly a non-generic declared type. Other values (subclasses of a non-generic type) are serialized by their runtime type, to keep subclass fields
+	 */
+	private SaveBinder getJSonSaveBinder(Class<?> declaredType, boolean generic, TypeAdapter<Object> adapter, String type) {
 		return (stmt, i, param) -> {
-			if (param != null) {
+			if (param == null) {
+				stmt.setObject(i, null);
+				return;
+			}
+			boolean declared = (generic ? declaredType.isInstance(param) : param.getClass() == declaredType);
+			String json = (declared ? adapter.toJson(param) : gson.toJson(param));
+			if (PgObject.constructor == null)//without PostgreSQL driver, let the database infer column type
+				stmt.setObject(i, json, OTHER);
+			else {
 				try {
 //					PGobject jobj = new PGobject();
-//					jobj.setType("json");
-//					jobj.setValue(new Gson().toJson(param));
+//					jobj.setType(type);
+//					jobj.setValue(json);
 //					stmt.setObject(i, jobj);
 					// Implement the above logic without the need of postgre dependencies
-					Class<?> clazz = Class.forName("org.postgresql.util.PGobject");
-					Object jobj = clazz.newInstance();
-					clazz.getMethod("setType", String.class).invoke(jobj, "json");
-					clazz.getMethod("setValue", String.class).invoke(jobj, new Gson().toJson(param));
+					Object jobj = (Object) PgObject.constructor.invokeExact();
+					PgObject.setType.invokeExact(jobj, type);
+					PgObject.setValue.invokeExact(jobj, json);
 					stmt.setObject(i, jobj);
 				}
-				catch(Exception x) {
-					throw new SQLException(x);
+				catch(SQLException | RuntimeException x) {
+					throw x;
+				}
+				catch(Throwable t) {
+					throw new SQLException(t);
 				}
 			}
-			else stmt.setObject(i, null);
 		};
 	}
 
+	/**
+	 * Type adapters are resolved once per field from its generic type, so that for example List&lt;Contract&gt; is deserialized into Contract objects
+	 * @param field JSON field
+	 * @return type adapter of shared Gson instance
+	 */
+	@SuppressWarnings("unchecked")
+	protected TypeAdapter<Object> getJSonAdapter(FieldProperties field) {
+		return (TypeAdapter<Object>) gson.getAdapter(TypeToken.get(field.field.getGenericType()));
+	}
+
+	/**
+	 * Method handles of org.postgresql.util.PGobject, resolved once. Resolved reflectively, so that SlimORM does not depend on PostgreSQL driver at compile time
+	 */
+	private static class PgObject {
+		static final MethodHandle constructor;//()Object; null, when PostgreSQL driver is not available
+		static final MethodHandle setType, setValue;//(Object,String)void
+
+		static {
+			MethodHandle ctor = null, type = null, value = null;
+			try {
+				Class<?> clazz = Class.forName("org.postgresql.util.PGobject");
+				MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+				MethodType setterType = MethodType.methodType(void.class, Object.class, String.class);
+				ctor = lookup.findConstructor(clazz, MethodType.methodType(void.class)).asType(MethodType.methodType(Object.class));
+				type = lookup.findVirtual(clazz, "setType", MethodType.methodType(void.class, String.class)).asType(setterType);
+				value = lookup.findVirtual(clazz, "setValue", MethodType.methodType(void.class, String.class)).asType(setterType);
+			}
+			catch(ReflectiveOperationException x) {
+				ctor = null;
+			}
+			constructor = ctor;
+			setType = type;
+			setValue = value;
+		}
+	}
+
 	@Override
 	public SaveBinder getEnumSaveBinder(Class<?> fieldType) {
 		return (stmt, i, param) -> stmt.setString(i, (param == null ? null : param.toString()));
@@ -2,17 +2,21 @@ package eu.miltema.slimorm.test;
 
 import java.io.*;
 import java.sql.Statement;
+import java.util.*;
 import java.util.stream.Collectors;
 
+import org.junit.After;
+
 import eu.miltema.slimorm.Database;
 
 abstract class AbstractDatabaseTest {
 
 	protected static Database db;
+	private final List<Database> testDatabases = new ArrayList<>();//databases with own connection pool, closed after each test
 
 	protected static final void initDatabase() throws Exception {
 		if (db == null) {
-			db = new Database("org.postgresql.Driver", "jdbc:postgresql://localhost:5432/slimtest", "slimuser", "slim1234");
+			db = openDatabase();
 			String sql;
 			try(BufferedReader r = new BufferedReader(new InputStreamReader(TestWrite.class.getResourceAsStream("/pg.sql")))) {
 				sql = r.lines().collect(Collectors.joining("\r\n"));
@@ -26,6 +30,26 @@ abstract class AbstractDatabaseTest {
 		}
 	}
 
+	/**
+	 * Create a database with its own built-in connection pool; the pool is closed after the test
+	 * @return database
+	 */
+	protected Database newDatabase() throws Exception {
+		Database database = openDatabase();
+		testDatabases.add(database);
+		return database;
+	}
+
+	private static Database openDatabase() throws Exception {
+		return new Database("org.postgresql.Driver", "jdbc:postgresql://localhost:5432/slimtest", "slimuser", "slim1234");
+	}
+
+	@After
+	public void closeDatabases() {
+		testDatabases.forEach(Database::close);
+		testDatabases.clear();
+	}
+
 	protected void deleteAll() throws Exception {
 		db.transaction((db, connection) -> {
 			try(Statement stmt = connection.createStatement()) {
@@ -0,0 +1,23 @@
+package eu.miltema.slimorm.test;
+
+import javax.persistence.*;
+
+public class EntityFKeyParent {
+
+	@Id
+	@GeneratedValue
+	Integer id;
+
+	String name;
+
+	@ManyToOne
+	EntityFKey entityFKey;
+
+	public EntityFKeyParent() {
+	}
+
+	public EntityFKeyParent(String name, EntityFKey entityFKey) {
+		this.name = name;
+		this.entityFKey = entityFKey;
+	}
+}
@@ -0,0 +1,6 @@
+package eu.miltema.slimorm.test;
+
+public class EntityNameOnly {
+
+	public String name;
+}
@@ -3,6 +3,7 @@ package eu.miltema.slimorm.test;
 import java.math.BigDecimal;
 import java.sql.Timestamp;
 import java.time.*;
+import java.util.List;
 import java.util.function.Consumer;
 
 import javax.persistence.*;
@@ -37,6 +38,7 @@ public class EntityWithTypes {
 	public LocalDateTime fLocalDateTime;
 	@JSon public JSonStruct fJson1;
 	@JSon public String[] fJson2;
+	@JSon(jsonb = true) public List<JSonStruct> fJson3;
 
 	public enum EType {A1, A2, BBB};
 	public EType fEnum;
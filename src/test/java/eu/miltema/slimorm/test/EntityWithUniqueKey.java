@@ -0,0 +1,21 @@
+package eu.miltema.slimorm.test;
+
+import javax.persistence.*;
+
+@Table(uniqueConstraints = @UniqueConstraint(columnNames = "code"))
+public class EntityWithUniqueKey {
+
+	public Integer id;
+
+	public String code;
+
+	public String name;
+
+	public EntityWithUniqueKey() {
+	}
+
+	public EntityWithUniqueKey(String code, String name) {
+		this.code = code;
+		this.name = name;
+	}
+}
@@ -18,6 +18,7 @@ public class TestForeignKeys extends AbstractDatabaseTest {
 		initDatabase();
 		db.transaction((db, connection) -> {
 			try(Statement stmt = connection.createStatement()) {
+				stmt.executeUpdate("TRUNCATE entity_fkey_parent");
 				stmt.executeUpdate("TRUNCATE entity_fkey");
 				stmt.executeUpdate("TRUNCATE entity_with_types");
 				stmt.executeUpdate("TRUNCATE entity_with_manual_id");
@@ -33,6 +34,7 @@ public class TestForeignKeys extends AbstractDatabaseTest {
 				db.insert(e);
 				db.insert(et);
 				key2 = db.insert(ef).id;
+				db.insert(new EntityFKeyParent("Parent", ef));
 				return null;
 			}
 		});
@@ -96,6 +98,17 @@ public class TestForeignKeys extends AbstractDatabaseTest {
 		assertEquals(445, ef.entityWithTypes.fInt1);
 	}
 
+	@Test
+	public void testNestedReferences() throws Exception {
+		EntityFKeyParent parent = db.where("name=?", "Parent").referencedColumns("*").referenceDepth(2).fetch(EntityFKeyParent.class);
+		assertEquals("Ann", parent.entityFKey.name);
+		assertEquals("Mary", parent.entityFKey.entity.name);
+		assertEquals("abc", parent.entityFKey.entityWithTypes.fString);
+		parent = db.where("name=?", "Parent").referencedColumns("*").fetch(EntityFKeyParent.class);
+		assertEquals("Ann", parent.entityFKey.name);
+		assertNull(parent.entityFKey.entity.name);//by default, only one level is resolved
+	}
+
 	@Test
 	public void testColumnNames() throws Exception {
 		assertEquals(2, db.sql("SELECT id, entity_id, entity_with_types_id FROM entity_fkey").list(EntityFKey.class).size());
@@ -3,13 +3,28 @@ package eu.miltema.slimorm.test;
 import static java.util.stream.Collectors.toList;
 import static org.junit.Assert.*;
 
-import java.util.List;
+import java.sql.DriverManager;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.*;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import eu.miltema.slimorm.BindException;
+import eu.miltema.slimorm.Database;
+import eu.miltema.slimorm.DatabaseConnectionFactory;
+import eu.miltema.slimorm.EntityCache;
+import eu.miltema.slimorm.EntityProperties;
+import eu.miltema.slimorm.Page;
+import eu.miltema.slimorm.QueryCache;
+import eu.miltema.slimorm.RecordNotFoundException;
+import eu.miltema.slimorm.ReplicaRouting;
+import eu.miltema.slimorm.ResultPublisher;
 import eu.miltema.slimorm.SlimormInitException;
+import eu.miltema.slimorm.SqlQuery;
+import eu.miltema.slimorm.dialect.PgDialect;
 
 public class TestRead extends AbstractDatabaseTest {
 
@@ -28,12 +43,83 @@ public class TestRead extends AbstractDatabaseTest {
 		db.getDialect().getProperties(EntityWithoutFields.class);
 	}
 
+	@Test
+	public void testConcurrentPropertiesInit() throws Exception {
+		PgDialect dialect = new PgDialect();//fresh dialect with cold caches
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<EntityProperties>> futures = IntStream.range(0, 8).
+					mapToObj(i -> executor.submit(() -> dialect.getProperties(EntityFKey.class))).
+					collect(toList());
+			EntityProperties props = futures.get(0).get();
+			for(Future<EntityProperties> future : futures)
+				assertSame(props, future.get());
+			assertNotNull(props.sqlSelect);
+			assertTrue(props.fields.stream().filter(f -> f.fieldType == EntityWithManualId.class).allMatch(f -> f.foreignField != null));
+			assertSame(dialect.getProperties(EntityWithManualId.class).idField, props.mapColumnToField.get("entity_id").foreignField);
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
 	@Test
 	public void testGetById() throws Exception {
 		Entity e = db.insert(new Entity("John", null));
 		assertNotNull(db.getById(Entity.class, e.id));
 	}
 
+	@Test
+	public void testEntityCache() throws Exception {
+		Database cdb = newDatabase().setEntityCache(Entity.class, 100, 60000);
+		Entity e = cdb.insert(new Entity("John", 1));
+		Entity e1 = cdb.getById(Entity.class, e.id);
+		Entity e2 = cdb.getById(Entity.class, e.id);
+		assertNotSame(e1, e2);
+		assertEquals("John", e2.name);
+		EntityCache cache = cdb.getEntityCache(Entity.class);
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+		e2.name = "Jack";
+		assertEquals("John", cdb.getById(Entity.class, e.id).name);//modifying returned entity must not modify cached entity
+		cdb.update(e2);
+		assertEquals("Jack", cdb.getById(Entity.class, e.id).name);
+		cdb.delete(Entity.class, e.id);
+		try {
+			cdb.getById(Entity.class, e.id);
+			fail();
+		}
+		catch(RecordNotFoundException x) {
+		}
+	}
+
+	@Test
+	public void testEntityCacheIdType() throws Exception {
+		Database cdb = newDatabase().setEntityCache(EntityWithManualId.class, 100, 60000);
+		db.deleteWhere(EntityWithManualId.class, "id=?", 7001L);
+		db.insert(new EntityWithManualId(7001L, "John", 1));
+		assertEquals("John", cdb.getById(EntityWithManualId.class, 7001).name);//Integer id for bigint column
+		cdb.update(new EntityWithManualId(7001L, "Jack", 1));
+		assertEquals("Jack", cdb.getById(EntityWithManualId.class, 7001).name);
+	}
+
+	@Test
+	public void testQueryCache() throws Exception {
+		deleteAll();
+		Database cdb = newDatabase().setQueryCache(Entity.class, 1000);
+		cdb.bulkInsert(IntStream.rangeClosed(1, 10).mapToObj(i -> new Entity("Mary", i)).collect(toList()));
+		assertEquals(5, cdb.listWhere(Entity.class, "count>?", 5).size());
+		assertEquals(5, cdb.listWhere(Entity.class, "count>?", 5).size());
+		assertEquals(4, cdb.listWhere(Entity.class, "count>?", 6).size());
+		QueryCache cache = cdb.getQueryCache(Entity.class);
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+		cdb.insert(new Entity("John", 11));
+		assertEquals(6, cdb.listWhere(Entity.class, "count>?", 5).size());
+		cdb.transaction((db, connection) -> db.deleteWhere(Entity.class, "count>?", 9));
+		assertEquals(4, cdb.listWhere(Entity.class, "count>?", 5).size());
+	}
+
 	@Test
 	public void testListAll() throws Exception {
 		deleteAll();
@@ -52,6 +138,172 @@ public class TestRead extends AbstractDatabaseTest {
 		assertEquals(5, list.size());
 	}
 
+	@Test
+	public void testQueryReuse() throws Exception {
+		deleteAll();
+		db.bulkInsert(IntStream.rangeClosed(1, 10).mapToObj(i -> new Entity("Mary", i)).collect(toList()));
+		SqlQuery q = db.where("count>=?", 4).orderBy("count");
+		assertEquals(7, q.list(Entity.class).size());
+		assertEquals(7, q.list(Entity.class).size());
+		assertEquals(4, q.fetch(Entity.class).count.intValue());
+	}
+
+	@Test
+	public void testStream() throws Exception {
+		deleteAll();
+		db.bulkInsert(IntStream.rangeClosed(1, 25).mapToObj(i -> new Entity("Mary", i)).collect(toList()));
+		try(Stream<? extends Entity> stream = db.where("count>?", 3).orderBy("count").fetchSize(10).stream(Entity.class)) {
+			assertEquals(IntStream.rangeClosed(4, 25).boxed().collect(toList()), stream.map(e -> e.count).collect(toList()));
+		}
+	}
+
+	@Test
+	public void testStreamPartially() throws Exception {
+		deleteAll();
+		db.bulkInsert(IntStream.rangeClosed(1, 25).mapToObj(i -> new Entity("Mary", i)).collect(toList()));
+		for(int i = 0; i < 300; i++)//closing a partially consumed stream must release the connection
+			try(Stream<? extends Entity> stream = db.streamWhere(Entity.class, "count>?", 3)) {
+				assertEquals(2, stream.limit(2).count());
+			}
+	}
+
+	@Test
+	public void testReadReplicas() throws Exception {
+		AtomicInteger replicaConnections = new AtomicInteger();
+		DatabaseConnectionFactory replica = () -> {
+			replicaConnections.incrementAndGet();
+			return DriverManager.getConnection("jdbc:postgresql://localhost:5432/slimtest", "slimuser", "slim1234");
+		};
+		Database rdb = newDatabase().setReadReplicas(ReplicaRouting.LEAST_BUSY, 60000, replica, replica);
+		rdb.listAll(Entity.class);
+		assertEquals(1, replicaConnections.get());
+		rdb.insert(new Entity("John", 1));//writes go to primary
+		rdb.getById(Entity.class, rdb.listAll(Entity.class).get(0).id);//reads of this thread are pinned to primary after write
+		assertEquals(1, replicaConnections.get());
+		rdb.listWhereAsync(Entity.class, "name=?", "John").get(10, TimeUnit.SECONDS);//async thread has not written
+		assertEquals(2, replicaConnections.get());
+	}
+
+	@Test
+	public void testParallelScan() throws Exception {
+		deleteAll();
+		db.bulkInsert(IntStream.rangeClosed(1, 100).mapToObj(i -> new Entity("Scan", i)).collect(toList()));
+		assertEquals(100, db.<Entity>parallelScan(Entity.class, null, 4).mapToInt(e -> e.id).distinct().count());
+		Map<Integer, Integer> partitionSizes = new ConcurrentHashMap<>();
+		db.<Entity>parallelScan(Entity.class, "count", 4, (partition, entities) -> partitionSizes.put(partition, (int) entities.count()));
+		assertEquals(4, partitionSizes.size());
+		assertEquals(25, partitionSizes.get(0).intValue());
+		assertEquals(100, partitionSizes.values().stream().mapToInt(Integer::intValue).sum());
+	}
+
+	@Test
+	public void testPublish() throws Exception {
+		deleteAll();
+		db.bulkInsert(IntStream.rangeClosed(1, 25).mapToObj(i -> new Entity("Mary", i)).collect(toList()));
+		List<Integer> counts = new CopyOnWriteArrayList<>();
+		CompletableFuture<Void> completed = new CompletableFuture<>();
+		db.where("count>?", 3).orderBy("count").fetchSize(10).<Entity>publish(Entity.class).subscribe(new ResultPublisher.Subscriber<Entity>() {
+			private ResultPublisher.Subscription subscription;
+
+			public void onSubscribe(ResultPublisher.Subscription subscription) {
+				this.subscription = subscription;
+				subscription.request(4);
+			}
+
+			public void onNext(Entity entity) {
+				counts.add(entity.count);
+				if (counts.size() % 4 == 0)
+					subscription.request(4);
+			}
+
+			public void onError(Throwable throwable) {
+				completed.completeExceptionally(throwable);
+			}
+
+			public void onComplete() {
+				completed.complete(null);
+			}
+		});
+		completed.get(10, TimeUnit.SECONDS);
+		assertEquals(IntStream.rangeClosed(4, 25).boxed().collect(toList()), counts);
+	}
+
+	@Test
+	public void testStreamInTransaction() throws Exception {
+		deleteAll();
+		long count = db.transaction((db, connection) -> {
+			db.insert(new Entity("John", 1));
+			db.insert(new Entity("Jack", 2));
+			try(Stream<? extends Entity> stream = db.streamWhere(Entity.class, null)) {
+				return stream.count();
+			}
+		});
+		assertEquals(2, count);
+	}
+
+	@Test
+	public void testKeysetPagination() throws Exception {
+		deleteAll();
+		db.bulkInsert(IntStream.rangeClosed(1, 25).mapToObj(i -> new Entity("Mary", i % 5)).collect(toList()));
+		List<Integer> expected = db.where("count>?", 0).orderBy("count DESC, id").list(Entity.class).stream().map(e -> e.id).collect(toList());
+		SqlQuery q = db.where("count>?", 0).keyset("count DESC, id");
+		List<Integer> ids = new ArrayList<>();
+		Page<Entity> page = q.page(Entity.class, 7, null);
+		int pageCount = 1;
+		while(page.hasNext()) {
+			assertEquals(7, page.entities.size());
+			page.entities.forEach(e -> ids.add(e.id));
+			page = q.page(Entity.class, 7, page.nextToken);
+			pageCount++;
+		}
+		page.entities.forEach(e -> ids.add(e.id));
+		assertEquals(20, expected.size());
+		assertEquals(expected, ids);
+		assertEquals(3, pageCount);
+	}
+
+	@Test
+	public void testKeysetPaginationWithSql() throws Exception {
+		deleteAll();
+		db.bulkInsert(IntStream.rangeClosed(1, 25).mapToObj(i -> new Entity("Mary", i % 5)).collect(toList()));
+		SqlQuery q = db.sql("SELECT * FROM entity WHERE count>? ORDER BY name", 0).keyset("count DESC, id");
+		Page<Entity> page = q.page(Entity.class, 15, null);
+		assertEquals(15, page.entities.size());
+		page = q.page(Entity.class, 15, page.nextToken);
+		assertEquals(5, page.entities.size());
+		assertFalse(page.hasNext());
+		assertTrue(page.entities.stream().allMatch(e -> e.count == 1));
+	}
+
+	@Test(expected = BindException.class)
+	public void testInvalidContinuationToken() throws Exception {
+		db.where("count>?", 0).keyset("count DESC, id").page(Entity.class, 7, "invalid");
+	}
+
+	@Test(expected = BindException.class)
+	public void testUnsupportedKeysetColumn() throws Exception {
+		db.where("id>?", 0).keyset("f_byte_array").page(EntityWithTypes.class, 7, null);
+	}
+
+	@Test
+	public void testSelectColumns() throws Exception {
+		deleteAll();
+		db.insert(new Entity("John", 123));
+		Entity e = db.where("name=?", "John").select("id, name").fetch(Entity.class);
+		assertNotNull(e.id);
+		assertEquals("John", e.name);
+		assertNull(e.count);
+	}
+
+	@Test
+	public void testProjection() throws Exception {
+		deleteAll();
+		db.bulkInsert(Stream.of(new Entity("John", 1), new Entity("Jack", 2)).collect(toList()));
+		List<EntityNameOnly> list = db.where("count>?", 1).from(Entity.class).list(EntityNameOnly.class);
+		assertEquals(1, list.size());
+		assertEquals("Jack", list.get(0).name);
+	}
+
 	@Test
 	public void testReadSql() throws Exception {
 		deleteAll();
@@ -5,9 +5,11 @@ import static org.junit.Assert.*;
 import java.math.BigDecimal;
 import java.sql.Timestamp;
 import java.time.*;
+import java.util.Arrays;
 
 import org.junit.*;
 
+import eu.miltema.slimorm.BindException;
 import eu.miltema.slimorm.test.EntityWithTypes.EType;
 
 public class TestTypes  extends AbstractDatabaseTest {
@@ -47,6 +49,11 @@ public class TestTypes  extends AbstractDatabaseTest {
 		assertEquals(34, db.getById(EntityWithTypes.class, e.id).fInt2.intValue());
 	}
 
+	@Test(expected = BindException.class)
+	public void testNullIntoPrimitive() throws Exception {
+		db.sql("SELECT 1 AS id, NULL::integer AS f_int1").list(EntityWithTypes.class);
+	}
+
 	@Test
 	public void testLong() throws Exception {
 		EntityWithTypes e = db.insert(new EntityWithTypes(x -> x.fLong1 = 23));
@@ -133,10 +140,57 @@ public class TestTypes  extends AbstractDatabaseTest {
 		assertEquals("def", e.fJson2[1]);
 	}
 
+	public static class JSonSubStruct extends JSonStruct {
+		public String attr4;
+	}
+
+	@Test
+	public void testJSonSubclass() throws Exception {
+		JSonSubStruct s = new JSonSubStruct();
+		s.attr4 = "sub";
+		EntityWithTypes e = db.insert(new EntityWithTypes(x -> x.fJson1 = s));
+		assertEquals(1, db.listWhere(EntityWithTypes.class, "id=? AND f_json1->>'attr4'=?", e.id, "sub").size());//subclass fields are saved
+	}
+
+	@Test
+	public void testJSonb() throws Exception {
+		JSonStruct s = new JSonStruct();
+		s.attr1 = "abc";
+		EntityWithTypes e = db.insert(new EntityWithTypes(x -> x.fJson3 = Arrays.asList(s)));
+		e = db.getById(EntityWithTypes.class, e.id);
+		assertEquals("abc", e.fJson3.get(0).attr1);//generic element type is preserved
+	}
+
 	@Test
 	public void testEnum() throws Exception {
 		EntityWithTypes e = db.insert(new EntityWithTypes(x -> x.fEnum = EType.BBB));
 		e = db.getById(EntityWithTypes.class, e.id);
 		assertEquals(EType.BBB, e.fEnum);
 	}
+
+	@Test
+	public void testBulkCopy() throws Exception {
+		JSonStruct s = new JSonStruct();
+		s.attr1 = "a\\b\nc";
+		EntityWithTypes e = new EntityWithTypes(x -> x.fString = "copy\ttest", x -> x.fByte1 = (byte) 200, x -> x.fShort2 = 34, x -> x.fLong1 = 23,
+				x -> x.fDouble2 = 34.11d, x -> x.fBigDecimal = new BigDecimal("12345678901234567890.55"), x -> x.fByteArray = new byte[] {4, 7, 9, -5},
+				x -> x.fInstant = Instant.parse("2007-12-03T10:15:30.00Z"), x -> x.fZonedDateTime = ZonedDateTime.parse("2007-12-03T10:15:30+09:00[Asia/Tokyo]"),
+				x -> x.fLocalDate = LocalDate.parse("2012-12-23"), x -> x.fJson1 = s, x -> x.fJson2 = new String[] {"abc"}, x -> x.fEnum = EType.A2);
+		db.deleteWhere(EntityWithTypes.class, "f_string=?", e.fString);
+		assertEquals(1, db.bulkCopy(Arrays.asList(e)));
+		EntityWithTypes e2 = db.where("f_string=?", e.fString).fetch(EntityWithTypes.class);
+		assertEquals((byte) 200, e2.fByte1);
+		assertEquals(34, e2.fShort2.shortValue());
+		assertEquals(23L, e2.fLong1);
+		assertNull(e2.fInt2);
+		assertEquals(34.11d, e2.fDouble2, .0001d);
+		assertEquals(e.fBigDecimal, e2.fBigDecimal);
+		assertArrayEquals(e.fByteArray, e2.fByteArray);
+		assertEquals(e.fInstant, e2.fInstant);
+		assertEquals(e.fZonedDateTime.toInstant(), e2.fZonedDateTime.toInstant());
+		assertEquals(e.fLocalDate, e2.fLocalDate);
+		assertEquals(s.attr1, e2.fJson1.attr1);
+		assertEquals("abc", e2.fJson2[0]);
+		assertEquals(EType.A2, e2.fEnum);
+	}
 }
@@ -4,6 +4,7 @@ import static org.junit.Assert.*;
 
 import java.sql.SQLException;
 import java.util.List;
+import java.util.concurrent.*;
 import static java.util.stream.Collectors.*;
 import java.util.stream.*;
 
@@ -94,6 +95,115 @@ public class TestWrite extends AbstractDatabaseTest {
 		assertNull(e2.count);
 	}
 
+	@Test
+	public void testUpsert() throws Exception {
+		db.upsert(new EntityWithManualId(1001L, "Mike", 18));
+		db.upsert(new EntityWithManualId(1001L, "Mary", 19));
+		EntityWithManualId e = db.getById(EntityWithManualId.class, 1001L);
+		assertEquals("Mary", e.name);
+		assertEquals((Integer) 19, e.fInt1);
+	}
+
+	@Test
+	public void testBulkUpsert() throws Exception {
+		db.deleteWhere(EntityWithUniqueKey.class, "code LIKE ?", "upsert%");
+		List<EntityWithUniqueKey> inserted = db.bulkUpsert(Stream.of(new EntityWithUniqueKey("upsert1", "John"), new EntityWithUniqueKey("upsert2", "Jack")).collect(toList()));
+		List<EntityWithUniqueKey> upserted = db.bulkUpsert(Stream.of(new EntityWithUniqueKey("upsert2", "Jane"), new EntityWithUniqueKey("upsert3", "Mary")).collect(toList()));
+		assertEquals(inserted.get(1).id, upserted.get(0).id);
+		assertNotNull(upserted.get(1).id);
+		assertEquals(3, db.listWhere(EntityWithUniqueKey.class, "code LIKE ?", "upsert%").size());
+		assertEquals("Jane", db.getById(EntityWithUniqueKey.class, inserted.get(1).id).name);
+	}
+
+	@Test(expected = BindException.class)
+	public void testUpsertWithoutUniqueKey() throws Exception {
+		db.upsert(new Entity("John", 1));
+	}
+
+	@Test
+	public void testBulkUpdate() throws Exception {
+		List<Entity> entities = db.bulkInsert(Stream.of(new Entity("Mary", 3), new Entity("Ann", null), new Entity("Jane", 5)).collect(toList()));
+		entities.forEach(e -> e.count = (e.count == null ? 1 : e.count + 1));
+		Entity missing = new Entity("Missing", 1);
+		missing.id = 999999999;
+		List<Entity> list = Stream.concat(Stream.of(missing), entities.stream()).collect(toList());
+		List<Entity> notFound = db.bulkUpdate(list);
+		assertEquals(1, notFound.size());
+		assertSame(missing, notFound.get(0));
+		assertEquals((Integer) 4, db.getById(Entity.class, entities.get(0).id).count);
+		assertEquals((Integer) 1, db.getById(Entity.class, entities.get(1).id).count);
+		assertEquals((Integer) 6, db.getById(Entity.class, entities.get(2).id).count);
+	}
+
+	@Test
+	public void testDirtyTracking() throws Exception {
+		List<OperationMetrics> metrics = new CopyOnWriteArrayList<>();
+		Database tdb = newDatabase().setDirtyTracking(true).setOperationListener(metrics::add);
+		Entity e = db.insert(new Entity("John", 1));
+		e = tdb.getById(Entity.class, e.id);
+		metrics.clear();
+		tdb.update(e);//unchanged entity is not written
+		assertTrue(metrics.isEmpty());
+		Entity concurrent = new Entity("John", 2);
+		concurrent.id = e.id;
+		db.update(concurrent);
+		e.name = "Peter";
+		tdb.update(e);//only name is written, concurrently modified count remains
+		assertEquals(1, metrics.size());
+		Entity reloaded = db.getById(Entity.class, e.id);
+		assertEquals("Peter", reloaded.name);
+		assertEquals((Integer) 2, reloaded.count);
+	}
+
+	@Test
+	public void testDirtyTrackingRollback() throws Exception {
+		Database tdb = newDatabase().setDirtyTracking(true);
+		Entity e = tdb.getById(Entity.class, db.insert(new Entity("John", 1)).id);
+		e.name = "Peter";
+		try {
+			tdb.transaction((db2, conn) -> {
+				db2.update(e);
+				throw new IllegalStateException();
+			});
+			fail();
+		}
+		catch(TransactionException x) {
+			assertTrue(x.getCause() instanceof IllegalStateException);
+		}
+		assertEquals("John", db.getById(Entity.class, e.id).name);
+		tdb.update(e);//rolled back update is retried
+		assertEquals("Peter", db.getById(Entity.class, e.id).name);
+	}
+
+	@Test
+	public void testUnitOfWork() throws Exception {
+		EntityWithTypes et = new EntityWithTypes(x -> x.fString = "uow");
+		EntityFKey ef = new EntityFKey("uow", null, et);
+		Entity e = db.insert(new Entity("John", 1));
+		Entity deleted = db.insert(new Entity("Jack", 1));
+		e.count = 2;
+		db.unitOfWork().insert(ef).insert(et).update(e).delete(Entity.class, deleted.id).flush();//referenced entity is inserted first, although registered last
+		assertNotNull(ef.id);
+		assertEquals(et.id, db.getById(EntityFKey.class, ef.id).entityWithTypes.id);
+		assertEquals((Integer) 2, db.getById(Entity.class, e.id).count);
+		assertTrue(db.listWhere(Entity.class, "id=?", deleted.id).isEmpty());
+	}
+
+	@Test
+	public void testUnitOfWorkRollback() throws Exception {
+		Entity e = new Entity("UnitOfWork", 1);
+		UnitOfWork uow = db.unitOfWork().insert(e).delete(Entity.class, 999999999);
+		try {
+			uow.flush();
+			fail();
+		}
+		catch(TransactionException x) {
+			assertTrue(x.getCause() instanceof RecordNotFoundException);
+		}
+		assertTrue(db.listWhere(Entity.class, "name=?", "UnitOfWork").isEmpty());
+		assertFalse(uow.isEmpty());
+	}
+
 	@Test
 	public void testLargeBulkInsert() throws Exception {
 		List<Entity> list = IntStream.rangeClosed(1, 100000).mapToObj(i -> new Entity("nimi" + i, i)).collect(toList());
@@ -101,6 +211,15 @@ public class TestWrite extends AbstractDatabaseTest {
 		assertEquals(100000, list.stream().map(e -> e.id).collect(toSet()).size());
 	}
 
+	@Test
+	public void testBulkCopy() throws Exception {
+		deleteAll();
+		List<Entity> list = IntStream.rangeClosed(1, 100000).mapToObj(i -> new Entity("nimi\t" + i, (i % 2 == 0 ? i : null))).collect(toList());
+		assertEquals(100000, db.bulkCopy(list));
+		assertEquals(50000, db.where("count IS NULL").list(Entity.class).size());
+		assertEquals("nimi\t8", db.where("count=?", 8).fetch(Entity.class).name);
+	}
+
 	@Test(expected = RecordNotFoundException.class)
 	public void testDelete() throws Exception {
 		Integer id = db.insert(new Entity("John", null)).id;
@@ -163,4 +282,124 @@ public class TestWrite extends AbstractDatabaseTest {
 				return db.insert(new Entity("John", 2));
 			});
 	}
+
+	@Test
+	public void testConnectionPool() throws Exception {
+		Database pdb = newDatabase();
+		ConnectionPool pool = pdb.getConnectionPool().setMaxSize(2);
+		for(int i = 0; i < 20; i++)
+			pdb.listAll(Entity.class);
+		pdb.transaction((db, connection) -> db.insert(new Entity("John", 1)));
+		assertEquals(21, pool.getAcquireCount());
+		assertEquals(0, pool.getActiveCount());
+		assertEquals(1, pool.getIdleCount());//sequential statements reuse the same connection
+	}
+
+	@Test
+	public void testStatementCache() throws Exception {
+		Database cdb = newDatabase().setStatementCacheSize(10);
+		cdb.transaction((db, connection) -> {
+			for(int i = 0; i < 10; i++) {
+				Entity e = db.insert(new Entity("John", i));
+				e.name = "Jack";
+				db.update(e);
+			}
+			return null;
+		});
+		assertEquals(2, cdb.getStatementCacheMisses());
+		assertEquals(18, cdb.getStatementCacheHits());
+	}
+
+	@Test
+	public void testStatementCacheAcrossOperations() throws Exception {
+		Database cdb = newDatabase().setStatementCacheSize(10);
+		cdb.getConnectionPool().setMaxSize(1);
+		for(int i = 0; i < 10; i++)
+			cdb.insert(new Entity("John", i));
+		assertEquals(1, cdb.getStatementCacheMisses());
+		assertEquals(9, cdb.getStatementCacheHits());
+	}
+
+	@Test
+	public void testOperationMetrics() throws Exception {
+		deleteAll();
+		List<OperationMetrics> metrics = new CopyOnWriteArrayList<>();
+		Database mdb = newDatabase().setOperationListener(metrics::add);
+		mdb.bulkInsert(Stream.of(new Entity("John", 1), new Entity("Jack", 2)).collect(toList()));
+		mdb.listAll(Entity.class);
+		try {
+			mdb.sql("SELECT * FROM no_such_table").list(Entity.class);
+			fail();
+		}
+		catch(SQLException x) {
+		}
+		assertEquals(3, metrics.size());
+		OperationMetrics m = metrics.get(0);
+		assertEquals(OperationMetrics.Operation.BULK_INSERT, m.operation);
+		assertEquals(Entity.class, m.entityClass);
+		assertEquals(2, m.rowCount);
+		assertEquals(1, m.batchCount);
+		assertTrue(m.totalNanos >= m.executeNanos);
+		m = metrics.get(1);
+		assertEquals(OperationMetrics.Operation.QUERY, m.operation);
+		assertEquals(2, m.rowCount);
+		assertNull(m.error);
+		assertNotNull(metrics.get(2).error);
+	}
+
+	@Test
+	public void testAsync() throws Exception {
+		deleteAll();
+		Database adb = newDatabase().setAsyncExecutor(Executors.newCachedThreadPool(), 3);
+		List<CompletableFuture<Entity>> inserts = IntStream.rangeClosed(1, 10).mapToObj(i -> adb.insertAsync(new Entity("John", i))).collect(toList());
+		CompletableFuture.allOf(inserts.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+		assertEquals(10, adb.<Entity>listWhereAsync(Entity.class, "name=?", "John").get(10, TimeUnit.SECONDS).size());
+		int count = adb.transactionAsync((db, connection) -> {
+			db.insert(new Entity("Jack", 1));
+			return db.listWhere(Entity.class, "name=?", "Jack").size();
+		}).get(10, TimeUnit.SECONDS);
+		assertEquals(1, count);
+		try {
+			adb.getByIdAsync(Entity.class, -1).get(10, TimeUnit.SECONDS);
+			fail();
+		}
+		catch(ExecutionException x) {
+			assertTrue(x.getCause() instanceof RecordNotFoundException);
+		}
+	}
+
+	@Test
+	public void testConcurrentTransactions() throws Exception {
+		deleteAll();
+		CountDownLatch bothInTransaction = new CountDownLatch(2);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<Integer> committed = executor.submit(() -> db.transaction((db, connection) -> {
+				Entity e = db.insert(new Entity("John", 1));
+				bothInTransaction.countDown();
+				bothInTransaction.await(10, TimeUnit.SECONDS);
+				return e.id;
+			}));
+			Future<Integer> rolledBack = executor.submit(() -> db.transaction((db, connection) -> {
+				db.insert(new Entity("Jack", 2));
+				bothInTransaction.countDown();
+				bothInTransaction.await(10, TimeUnit.SECONDS);
+				throw new RuntimeException();
+			}));
+			Integer id = committed.get();
+			try {
+				rolledBack.get();
+				fail("Second transaction should have failed");
+			}
+			catch(ExecutionException x) {
+				assertTrue(x.getCause() instanceof TransactionException);
+			}
+			List<Entity> list = db.listAll(Entity.class);
+			assertEquals(1, list.size());
+			assertEquals(id, list.get(0).id);
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
 }
@@ -47,6 +47,7 @@ CREATE TABLE public.entity_with_types
   f_local_date_time timestamp without time zone,
   f_json1 json,
   f_json2 json,
+  f_json3 jsonb,
   f_enum character varying,
   CONSTRAINT entity_with_types_pkey PRIMARY KEY (id)
 );
@@ -61,4 +62,26 @@ CREATE TABLE public.entity_fkey
   entity_id integer,
   entity_with_types_id integer,
   CONSTRAINT entity_fkey_pkey PRIMARY KEY (id)
-);
\ No newline at end of file
+);
+DROP TABLE IF EXISTS public.entity_with_unique_key;
+CREATE TABLE public.entity_with_unique_key
+(
+  id serial NOT NULL,
+  code character varying not null,
+  name character varying,
+  CONSTRAINT entity_with_unique_key_pkey PRIMARY KEY (id),
+  CONSTRAINT entity_with_unique_key_code UNIQUE (code)
+);
+ALTER TABLE public.entity_with_unique_key
+  OWNER TO slimuser;
+
+DROP TABLE IF EXISTS public.entity_fkey_parent;
+CREATE TABLE public.entity_fkey_parent
+(
+  id serial NOT NULL,
+  name character varying,
+  entity_fkey_id integer,
+  CONSTRAINT entity_fkey_parent_pkey PRIMARY KEY (id)
+);
+ALTER TABLE public.entity_fkey_parent
+  OWNER TO slimuser;